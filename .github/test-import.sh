@@ -0,0 +1,42 @@
+#!/bin/bash
+# Imports bundles with entries that point outside of the directories they are unpacked to.
+# Every import has to fail without writing anything outside of them.
+
+cd "$(dirname "$0")/.." || exit 1
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+python3 - "$work" <<'PY'
+import sys
+import zipfile
+
+work = sys.argv[1]
+bundles = {
+    "kernel-entry": ("jj", "", "kernel/../../../evil-kernel"),
+    "runtime-entry": ("jj", "abc", "runtime/../../../evil-runtime"),
+    "jar-entry": ("jj", "", "jars/../../evil-jar"),
+    "kernel-name": ("../evil-name", "", None),
+}
+for name, (kernel, runtime, entry) in bundles.items():
+    with zipfile.ZipFile(f"{work}/{name}.zip", "w") as bundle:
+        bundle.writestr("bundle.properties", f"format=1\nkernel={kernel}\nruntime={runtime}\n")
+        bundle.writestr("kernel/kernel.json", "{}")
+        if entry:
+            bundle.writestr(entry, "escaped")
+PY
+
+has_error=0
+for bundle in "$work"/*.zip; do
+    if jbang installkernel.java --jupyter-kernel-dir="$work/kernels/sub" import --cache="$work/cache/sub" "$bundle"; then
+        echo "Error: $bundle was imported"
+        has_error=1
+    fi
+done
+if [ -n "$(find "$work" -name 'evil*')" ]; then
+    echo "Error: files written outside of the import directories:"
+    find "$work" -name 'evil*'
+    has_error=1
+fi
+
+echo "has_error: $has_error"
+exit $has_error
@@ -11,6 +11,12 @@ parser = argparse.ArgumentParser()
 parser.add_argument("--kernel", type=str, required=True)
 parser.add_argument("--implementation", type=str, required=True)
 parser.add_argument("--quiet", action="store_true", default=False)
+parser.add_argument("--hwm", type=int,
+                    help="messages the proxy queues per channel before it stops reading")
+parser.add_argument("--iopub-buffer", type=int,
+                    help="megabytes of kernel output the proxy queues for a slow frontend")
+parser.add_argument("--iopub-policy", choices=["coalesce", "drop", "block"],
+                    help="what the proxy does with output once the iopub buffer is full")
 args = parser.parse_args()
 
 
@@ -71,6 +77,12 @@ proxy_kernel_spec.argv = [
     "{connection_file}",
     f"--kernel={new_kernel_name}",
 ]
+if args.hwm is not None:
+    proxy_kernel_spec.argv.append(f"--hwm={args.hwm}")
+if args.iopub_buffer is not None:
+    proxy_kernel_spec.argv.append(f"--iopub-buffer={args.iopub_buffer}")
+if args.iopub_policy is not None:
+    proxy_kernel_spec.argv.append(f"--iopub-policy={args.iopub_policy}")
 proxy_kernel_spec.display_name = real_kernel_spec.display_name
 proxy_kernel_spec.interrupt_mode = real_kernel_spec.interrupt_mode or "message"
 proxy_kernel_spec.language = real_kernel_spec.language
@@ -3,8 +3,20 @@
 //JAVA 11+
 //DEPS info.picocli:picocli:4.6.3
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.12.3
-//JAVA_OPTIONS -Djava.awt.headless=true
+//DEPS com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:2.12.3
+//JAVA_OPTIONS -Djava.awt.headless=true -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto
+//CDS
 //FILES ipc_proxy_kernel.py
+//FILES ipcproxykernel.java
+//FILES kernelpool.java
+//FILES kernelmetrics.java
+//FILES kernelwarmup.java
+//FILES kerneltrace.java
+//FILES kernelcrac.java
+//FILES kernelidle.java
+//FILES kerneljfr.java
+//SOURCES ipcproxykernel.java
+//SOURCES ipcproxybench.java
 
 import static java.lang.String.format;
 import static java.lang.System.out;
@@ -12,48 +24,106 @@ import static java.nio.file.Files.createDirectories;
 import static java.nio.file.Files.exists;
 import static java.nio.file.Files.write;
 
-import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.security.NoSuchAlgorithmException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
 
 import javax.imageio.ImageIO;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategies;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
 
 @Command(name = "install-kernel", mixinStandardHelpOptions = true, version = "install-kernel 0.1",
-        description = "Installs JVM based Kernels that can be run via maven artifacts using JBang", showDefaultValues=true)
+        description = "Installs JVM based Kernels that can be run via maven artifacts using JBang", showDefaultValues=true,
+        subcommands = {installkernel.Bench.class, installkernel.BenchCells.class, installkernel.SeedAssets.class, installkernel.Sync.class, installkernel.JfrSummary.class, installkernel.StartupSummary.class, installkernel.Export.class, installkernel.Import.class})
 class installkernel implements Callable<Integer> {
 
     private static final String CONNECTION_FILE_MARKER = "{connection_file}";
@@ -72,6 +142,7 @@ class installkernel implements Callable<Integer> {
                                     "IJAVA_COMPILER_OPTS",compilerOptions
                                     );
                     }
+                    Map<String, String> initScript(String path, String content) { return Map.of("IJAVA_STARTUP_SCRIPTS_PATH", path); }
                 },
                 JJAVA { 
                     String shortName() { return "JJava"; }
@@ -81,6 +152,7 @@ class installkernel implements Callable<Integer> {
                     Map<String, String> options(String compilerOptions, long timeout) {
                         return Map.of();
                     }
+                    Map<String, String> initScript(String path, String content) { return Map.of("JJAVA_STARTUP_SCRIPTS_PATH", path); }
                     List<String> arguments() { return List.of(
                         "%{deps:org.dflib.jjava:jjava:" + v() + "@fatjar}", CONNECTION_FILE_MARKER); } 
 
@@ -113,6 +185,7 @@ class installkernel implements Callable<Integer> {
                                    // "RJK_INIT_SCRIPT", "",
                                     "RJK_TIMEOUT_MILLIS", ""+timeout);
                     }
+                    Map<String, String> initScript(String path, String content) { return Map.of("RJK_INIT_SCRIPT", content); }
                 },
                 GANYMEDE { 
                     String info() { return "https://github.com/allen-ball/ganymede"; }
@@ -157,6 +230,12 @@ class installkernel implements Callable<Integer> {
                     }*/
                     List<String> arguments() { return List.of(
                         "-cp=%{deps:org.jetbrains.kotlinx:kotlin-jupyter-lib:" + v() + "}", CONNECTION_FILE_MARKER); } 
+                    String warmupCell() { return String.join("\n",
+                        "run {",
+                        "    val squares = (0 until 20_000).map { it * it }",
+                        "    val counts = squares.groupingBy { it % 2 == 0 }.eachCount()",
+                        "    \"$counts ${squares.sumOf { it.toLong() }}\"",
+                        "}"); }
                 };
 
                
@@ -182,6 +261,17 @@ class installkernel implements Callable<Integer> {
                 return Map.of();
             }
             String info() { return null; }
+            /** Environment that makes the kernel run an init script itself, empty if it cannot. */
+            Map<String, String> initScript(String path, String content) { return Map.of(); }
+            /** A cell exercising the compiler and the collections most cells use, without leaving anything behind: no imports, only a block. */
+            String warmupCell() { return String.join("\n",
+                    "{",
+                    "    java.util.List<Integer> squares = new java.util.ArrayList<>();",
+                    "    for (int i = 0; i < 20_000; i++) squares.add(i * i);",
+                    "    java.util.Map<Boolean, Long> counts = squares.stream()",
+                    "            .collect(java.util.stream.Collectors.partitioningBy(i -> i % 2 == 0, java.util.stream.Collectors.counting()));",
+                    "    String.format(\"%s %d\", counts, squares.stream().mapToLong(Integer::longValue).sum());",
+                    "}"); }
             public String displayName() {
                 // doing this so it becomes "Kotlin (j!)" rather than "Kotlin (Kotlin/j!)"
 
@@ -194,9 +284,51 @@ class installkernel implements Callable<Integer> {
         }
 
 
-        @Parameters(defaultValue = "jjava", description = "The kernel to install. Possible values: ${COMPLETION-CANDIDATES}")
+        static class KernelCandidates implements Iterable<String> {
+            final List<String> names = new ArrayList<>();
+
+            KernelCandidates() {
+                Arrays.stream(Kernels.values()).forEach(k -> names.add(k.name().toLowerCase()));
+                names.add("all");
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return names.iterator();
+            }
+
+            @Override
+            public String toString() {
+                return names.toString();
+            }
+        }
+
+        @Parameters(arity = "0..*", defaultValue = "jjava", completionCandidates = KernelCandidates.class,
+                description = "The kernels to install. Possible values: ${COMPLETION-CANDIDATES}")
+        List<String> kernels;
+
+        @Option(names="--parallelism", description = "How many kernels to install at the same time when installing more than one. Defaults to the number of processors, at most 4.")
+        Integer parallelism;
+
         Kernels kernel;
 
+        List<Kernels> kernels() {
+            var result = new ArrayList<Kernels>();
+            for (String k : kernels) {
+                if ("all".equalsIgnoreCase(k)) {
+                    return Arrays.asList(Kernels.values());
+                }
+                Kernels value = Arrays.stream(Kernels.values())
+                        .filter(candidate -> candidate.name().equalsIgnoreCase(k))
+                        .findFirst()
+                        .orElseThrow(() -> new IllegalArgumentException("Unknown kernel '" + k + "'. Possible values: " + new KernelCandidates()));
+                if (!result.contains(value)) {
+                    result.add(value);
+                }
+            }
+            return result;
+        }
+
         @Option(names = "--verbose")
         boolean verbose;
 
@@ -248,20 +380,156 @@ class installkernel implements Callable<Integer> {
         @Option(names="--ipc", defaultValue = "false", description = "Whether to install a proxy kernel that can be used to run kernel with IPC")
         boolean useIPC;
 
+        enum LaunchMode { JBANG, DIRECT }
+
+        @Option(names="--launch", defaultValue = "jbang", description = "How kernel.json starts the kernel. 'jbang' resolves it on every start, 'direct' runs java with an argfile resolved at install time. Possible values: ${COMPLETION-CANDIDATES}")
+        LaunchMode launch;
+
+        @Option(names="--pool", description = "Keep up to this many kernel JVMs booted and warmed up by a pool daemon, so kernels start instantly. Implies --launch=direct.")
+        Integer pool;
+
+        /**
+         * Flight Recorder levels. Each kernel session dumps its recording on exit to its own file in <code>jfr</code>
+         * in the kernel directory, bounded by age and size of what is kept in memory and on disk while it runs.
+         * The kernel-jfr agent bounds the recordings the sessions leave behind by <code>keepDays</code> and
+         * <code>keepMegabytes</code> when a kernel starts.
+         */
+        enum Jfr {
+            OFF(List.of(), 0, 0),
+            LIGHT(List.of("settings=default", "maxage=2h", "maxsize=64m"), 14, 1024),
+            PROFILE(List.of("settings=profile", "maxage=30m", "maxsize=256m"), 3, 2048);
+
+            final List<String> recordingOptions;
+            final int keepDays;
+            final int keepMegabytes;
+
+            Jfr(List<String> recordingOptions, int keepDays, int keepMegabytes) {
+                this.recordingOptions = recordingOptions;
+                this.keepDays = keepDays;
+                this.keepMegabytes = keepMegabytes;
+            }
+
+            /**
+             * Whether a kernel on this Java version dumps each session to its own file, as the jvm does for a
+             * directory as filename since Java 17. Before, every session overwrites the one <code>kernel.jfr</code>.
+             */
+            static boolean filePerSession(int javaFeature) {
+                return javaFeature >= 17;
+            }
+
+            List<String> jvmArguments(int javaFeature) {
+                if (this == OFF) {
+                    return List.of();
+                }
+                var options = new ArrayList<String>(List.of("name=kernel"));
+                options.addAll(recordingOptions);
+                if (!filePerSession(javaFeature)) {
+                    // Java 11 neither reliably takes a directory as filename nor knows the jfr+startup log tags
+                    options.addAll(List.of("dumponexit=true", "filename={{KERNEL_DIR}}/jfr/kernel.jfr"));
+                    return List.of("-XX:StartFlightRecording=" + String.join(",", options));
+                }
+                // a directory as filename makes the jvm name each dump after its pid and start time
+                options.addAll(List.of("dumponexit=true", "filename={{KERNEL_DIR}}/jfr"));
+                return List.of("-XX:StartFlightRecording=" + String.join(",", options), "-Xlog:jfr+startup=error");
+            }
+        }
+
+        @Option(names="--jfr", defaultValue = "off", description = "Continuous Flight Recorder recording for each kernel session, dumped on exit to the kernel's jfr directory. 'light' has about 1% overhead, 'profile' more detail. A starting kernel deletes recordings older than 14 days or beyond 1 GB ('light'), 3 days or 2 GB ('profile'); before Java 17 each session overwrites the last one. See the jfr-summary command. Possible values: ${COMPLETION-CANDIDATES}")
+        Jfr jfr;
+
+        @Option(names="--init-script", description = "File with code to run when the kernel starts. Passed to kernels that support init scripts, sent as the first cell by the warm-up agent to the others.")
+        Path initScript;
+
+        @Option(names="--warmup", defaultValue = "false", description = "Run a representative cell in the background right after the kernel started, so the compiler and JIT are warm for the first cell")
+        boolean warmup;
+
+        @Option(names="--metrics", defaultValue = "false", description = "Attach the kernel-metrics java agent, which writes heap, GC, thread, CPU, time to ready and cell latency metrics to the kernel's metrics directory")
+        boolean metrics;
+
+        @Option(names="--metrics-port", description = "Also serve the latest metrics on http://127.0.0.1:<port>/metrics, 0 picks a free port per session. Implies --metrics.")
+        Integer metricsPort;
+
+        @Option(names="--trace-startup", defaultValue = "false", description = "Append when each startup phase of every kernel launch ended, the jdk, classpath size and cache hits to startup.jsonl in the kernel directory. See the startup-summary command.")
+        boolean traceStartup;
+
+        @Option(names="--idle-release", description = "Return a kernel's memory to the system once no cell ran for this many seconds: a full GC shrinks and uncommits its heap, each release is logged to idle.jsonl in the kernel directory. Works with the G1 and serial collectors, not with --profile=throughput.")
+        Integer idleRelease;
+
+        @Option(names="--crac", defaultValue = "false", description = "Start the kernel by restoring a checkpoint of its booted and warmed up jvm, taken at install time with Coordinated Restore at Checkpoint. Needs a jdk with CRaC, starts the regular way when the image cannot be restored. Implies --launch=direct.")
+        boolean crac;
+
+        @Option(names="--deps", split=",", description = "Extra libraries, as gavs, resolved at install time and merged with the kernel's jars into classpath.jar in the kernel directory, so they are loaded from one archive and ready at the first cell. Implies --launch=direct.")
+        List<String> deps = new ArrayList<>();
+
+        @Option(names="--autotune", defaultValue = "false", description = "Try each jdk already on this machine that --java allows with each --profile and the jvm defaults, or just the --profile given: "
+                + "install the kernel with it to a temporary directory, launch it and time it until ready and through the bench-cells corpus. Installs the fastest, the measurements of all go to autotune.json in the kernel directory.")
+        boolean autotune;
+
+        @Option(names="--autotune-launches", defaultValue = "2", description = "How many times --autotune launches each candidate")
+        int autotuneLaunches;
+
+        @Option(names="--jlink", defaultValue = "false", description = "Run the kernel on a runtime linked with just the modules it needs, shared by kernels needing the same modules. Implies --launch=direct.")
+        boolean jlink;
+
+        /**
+         * JVM tuning per workload. Heap sizes are percentages and processor counts are left to the jvm where possible,
+         * so they are computed by the jvm's container support from the cgroup limits on every launch.
+         */
+        enum Profile {
+            STARTUP(List.of("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-XX:InitialRAMPercentage=2", "-XX:MaxRAMPercentage=25",
+                    "-XX:ActiveProcessorCount=2", "-Xshare:auto")),
+            INTERACTIVE(List.of("-XX:+UseG1GC", "-XX:MaxGCPauseMillis=50", "-XX:InitialRAMPercentage=5", "-XX:MaxRAMPercentage=50")),
+            THROUGHPUT(List.of("-XX:+UseParallelGC", "-XX:InitialRAMPercentage=25", "-XX:MaxRAMPercentage=75")),
+            DENSE(List.of("-XX:+UseSerialGC", "-XX:InitialRAMPercentage=1", "-XX:MaxRAMPercentage=15", "-XX:MinHeapFreeRatio=10", "-XX:MaxHeapFreeRatio=30",
+                    "-XX:ActiveProcessorCount=2", "-XX:CICompilerCount=2", "-XX:ReservedCodeCacheSize=64m", "-Xss512k"));
+
+            final List<String> jvmArguments;
+
+            Profile(List<String> jvmArguments) {
+                this.jvmArguments = jvmArguments;
+            }
+        }
+
+        @Option(names="--profile", description = "JVM tuning profile for the kernel: 'startup' for fastest start, 'interactive' for short pauses, 'throughput' for long computations, 'dense' for many kernels per node. Possible values: ${COMPLETION-CANDIDATES}")
+        Profile profile;
+
+        @Option(names="--asset-cache", description = "Directory of the content addressed cache for logos and other kernel resources. Defaults to ~/.cache/jupyter-java/assets")
+        Path assetCacheDir;
+
+        AssetCache assetCache() {
+            return new AssetCache(assetCacheDir!=null ? assetCacheDir : AssetCache.defaultRoot());
+        }
+
+        enum ProxyImplementation { JAVA, PYTHON }
+
+        @Option(names="--ipc-proxy", defaultValue = "java", description = "Implementation of the proxy kernel installed with --ipc. 'java' falls back to 'python' when the installer does not run on a jdk with a compiler. Possible values: ${COMPLETION-CANDIDATES}")
+        ProxyImplementation ipcProxy;
+
+        enum ProxyIopubPolicy { COALESCE, DROP, BLOCK }
+
+        @Option(names="--proxy-hwm", description = "Messages the python proxy (--ipc-proxy=python) queues per channel before it stops reading from the sending side (1000)")
+        Integer proxyHwm;
+
+        @Option(names="--proxy-iopub-buffer", description = "Megabytes of kernel output the python proxy (--ipc-proxy=python) queues for a frontend that does not keep up (64)")
+        Integer proxyIopubBuffer;
+
+        @Option(names="--proxy-iopub-policy", description = "What the python proxy (--ipc-proxy=python) does with output once the iopub buffer is full: merge stream messages, drop them with a notice, or stop reading from the kernel. Possible values: ${COMPLETION-CANDIDATES} (coalesce)")
+        ProxyIopubPolicy proxyIopubPolicy;
+
+        @Option(names={"--pin", "--offline"}, defaultValue = "false", description = "Whether to resolve versions and dependencies at install time and start the kernel with jbang --offline")
+        boolean pin;
+
+        @Option(names="--cds", defaultValue = "false", description = "Whether to do a training launch at install time and use its class data sharing archive (AOT cache on Java 24+) on every kernel start")
+        boolean cds;
+
+        @Option(names="--cds-training-seconds", defaultValue = "10", description = "How long the training launch keeps the kernel running once it accepts connections")
+        long cdsTrainingSeconds;
+
         @Option(names="--compiler-options", defaultValue = "", description = "Compiler options to pass to the kernel")
         String compilerOptions;
 
         String compilerOptions() {
-            String defaultOptions = Objects.toString(compilerOptions, "");
-            if(preview) {
-                defaultOptions = defaultOptions + "--enable-preview --source " + java().replace("+", "");
-            } 
-
-           /*  if(parameters) {
-                defaultOptions = defaultOptions + " --parameters";
-            }*/
-
-            return defaultOptions;
+            return KernelSpecs.compilerOptions(compilerOptions, preview, java());
         }
 
         private enum OSName {
@@ -271,7 +539,7 @@ class installkernel implements Callable<Integer> {
                 SOLARIS
             }
         
-            private OSName findOSName() {
+            static OSName findOSName() {
                 String os = System.getProperty("os.name").toLowerCase();
         
                 if (os.contains("win")) {
@@ -331,6 +599,10 @@ class installkernel implements Callable<Integer> {
      * @return
      */
     private Path findCommand(String cmd) {
+        return specs().command(cmd);
+    }
+
+    static Path lookupCommand(String cmd, OSName os) {
         if ("jbang".equals(cmd) && System.getenv("JBANG_LAUNCH_CMD") != null) {
             return Path.of(System.getenv("JBANG_LAUNCH_CMD"));
         }
@@ -367,271 +639,4113 @@ class installkernel implements Callable<Integer> {
         System.exit(exitCode);
     }
 
-     private KernelJson generateProxyKernelJson(KernelJson kernelJson) {
+    /**
+     * A proxy kernel that runs the java proxy from <code>ipcproxykernel.java</code>, compiled at install time
+     * by {@link #compileProxy(Path)} with the jdk running the installer.
+     */
+    private KernelJson generateJavaProxyKernelJson(KernelJson kernelJson) {
+        String proxyApp = loadResource("ipcproxykernel.java");
+        String javaCmd = Path.of(System.getProperty("java.home"), "bin", os == OSName.WINDOWS ? "java.exe" : "java").toString();
 
-        String proxyApp = loadResource("ipc_proxy_kernel.py");
-        String pycmd;
+        return new KernelJson(
+                        List.of(javaCmd,
+                                "-XX:TieredStopAtLevel=1",
+                                "-XX:+UseSerialGC",
+                                "-Xss512k",
+                                "-cp", "{{KERNEL_DIR}}/proxy",
+                                "ipcproxykernel",
+                                CONNECTION_FILE_MARKER,
+                                "--kernel-dir={{KERNEL_DIR}}/../" + kernelJson.kernelDir),
+                        name(),
+                        kernel.language(),
+                        INTERRUPT_MODE,
+                        Map.of(),
+                        kernelDir(),
+                        Map.of(Path.of("ipcproxykernel.java"), proxyApp));
+    }
 
-        Path pythonCommand = findCommand("python");
-        if (pythonCommand == null) {
-            pythonCommand = findCommand("python3");
+    /**
+     * Whether the jdk running the installer can build the java proxy and the agents, which need Java 17 like the
+     * kernels they run with. The installer itself also runs on Java 11.
+     */
+    static boolean canCompileProxy() {
+        return Runtime.version().feature() >= 17 && javax.tools.ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    void compileProxy(Path fullKernelDir) throws IOException {
+        compile(fullKernelDir, "proxy", "ipcproxykernel.java");
+    }
+
+    /**
+     * Compiles helpers installed as kernel resources into <code>output</code> in the kernel dir,
+     * unless they were already compiled from the same sources.
+     * @return true if they were compiled
+     */
+    boolean compile(Path fullKernelDir, String output, String... sourceFiles) throws IOException {
+        var sources = new ArrayList<String>();
+        var content = new ArrayList<String>();
+        for (String sourceFile : sourceFiles) {
+            sources.add(fullKernelDir.resolve(sourceFile).toString());
+            content.add(Files.readString(fullKernelDir.resolve(sourceFile)));
         }
-        if (pythonCommand == null) {
-            throw new IllegalStateException("Python executable not found in PATH. Please ensure it is available before installing kernel.");
+        Path compiledFrom = fullKernelDir.resolve(output).resolve(".source.sha256");
+        String sourceHash = sha256(content.toArray(new String[0]));
+        if (exists(compiledFrom) && Files.readString(compiledFrom).equals(sourceHash)) {
+            verbose(String.join(", ", sourceFiles) + " in " + fullKernelDir.resolve(output) + " is up to date");
+            return false;
+        }
+        var compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        var arguments = new ArrayList<>(List.of("-d", fullKernelDir.resolve(output).toString()));
+        arguments.addAll(sources);
+        int result = compiler.run(null, null, null, arguments.toArray(new String[0]));
+        if (result != 0) {
+            throw new IOException("Could not compile " + String.join(", ", sources));
         }
-        pycmd = pythonCommand.toAbsolutePath().toString();
+        AssetCache.writeAtomically(compiledFrom, sourceHash.getBytes(StandardCharsets.US_ASCII));
+        changedFiles++;
+        verbose("Compiled " + String.join(", ", sourceFiles) + " to " + fullKernelDir.resolve(output));
+        return true;
+    }
 
-         KernelJson proxyKernel = new KernelJson(
-                        List.of(pycmd, 
-                             "{{KERNEL_DIR}}/ipc_proxy_kernel.py", 
-                                CONNECTION_FILE_MARKER, 
-                                "--kernel="+kernelJson.kernelDir), 
-                        name(), 
-                        kernel.language(), 
-                        INTERRUPT_MODE, 
-                        Map.of(),
-                        kernelDir(),
-                        Map.of(Path.of("ipc_proxy_kernel.py"), proxyApp));
+    boolean metrics() {
+        return metrics || metricsPort!=null;
+    }
 
-        return proxyKernel;
+    /**
+     * The lowest Java version the kernel may run on, as <code>--java</code> or the kernel allow.
+     */
+    int javaFeature() {
+        return jdkFeature(java().replace("+", ""));
     }
 
-    KernelJson generateJavaKernelJson(String postfix) {
-        Path command = findCommand("jbang");
-        if (command == null) {
-            throw new IllegalStateException("jbang executable not found. Please ensure it is available before running install kernel.");
-        }
-        var commandList = new ArrayList<String>(); 
-        commandList.add(command.toAbsolutePath().toString());
-        commandList.add("--java");
-        commandList.add(java());
+    /**
+     * Whether the kernel-jfr agent prunes the recordings of <code>--jfr</code>, which only pile up where each
+     * session dumps to its own file.
+     */
+    boolean jfrAgent() {
+        return jfr != Jfr.OFF && Jfr.filePerSession(javaFeature());
+    }
 
-        debug.forEach((key, value) -> {
-            commandList.add("-d" + key + "=" + value);
-        });
+    /**
+     * Whether the warm-up agent sends the init script, which it does unless the kernel runs it itself.
+     */
+    boolean agentRunsInitScript() {
+        return initScript!=null && kernel.initScript("", "").isEmpty();
+    }
 
-        if(preview)
-            commandList.add("--enable-preview");
-        
-         if(assertions) {
-                commandList.add("--ea");
-         }
+    /**
+     * Whether the warm-up agent runs, to send the init script or the warm-up cell.
+     */
+    boolean warmupAgent() {
+        return agentRunsInitScript() || warmup;
+    }
 
-        if(kernel.mainClass()!=null) {
-            commandList.add("-m");
-            commandList.add(kernel.mainClass());
+    /**
+     * The <code>-javaagent</code> options for <code>--trace-startup</code>, <code>--metrics</code>, <code>--idle-release</code>, <code>--warmup</code> and <code>--jfr</code>.
+     * They belong on the kernel argv rather than in an argfile, so Jupyter substitutes the connection file in them.
+     */
+    List<String> javaAgents() {
+        var agents = new ArrayList<String>();
+        if(traceStartup) {
+            // first, so its own premain does not count as jvm boot of the kernel
+            agents.add("-javaagent:{{KERNEL_DIR}}/agent/kerneltrace.jar=file={{KERNEL_DIR}}/startup.jsonl,connection=" + CONNECTION_FILE_MARKER);
         }
-
-        if(kernel.modules().size()>0) {
-            commandList.add("-R--add-modules");
-            commandList.add("-R" + String.join(",", kernel.modules()));
+        if(metrics()) {
+            agents.add("-javaagent:{{KERNEL_DIR}}/agent/kernelmetrics.jar=dir={{KERNEL_DIR}}/metrics,connection=" + CONNECTION_FILE_MARKER
+                    + (metricsPort!=null ? ",port=" + metricsPort : ""));
+        }
+        if(idleRelease!=null) {
+            agents.add("-javaagent:{{KERNEL_DIR}}/agent/kernelidle.jar=file={{KERNEL_DIR}}/idle.jsonl,connection=" + CONNECTION_FILE_MARKER + ",idle=" + idleRelease);
         }
+        if(warmupAgent()) {
+            agents.add("-javaagent:{{KERNEL_DIR}}/agent/kernelwarmup.jar=connection=" + CONNECTION_FILE_MARKER
+                    + (agentRunsInitScript() ? ",init={{KERNEL_DIR}}/init.jsh" : "") + (warmup ? ",cells={{KERNEL_DIR}}/warmup.jsh" : ""));
+        }
+        if(jfrAgent()) {
+            agents.add("-javaagent:{{KERNEL_DIR}}/agent/kerneljfr.jar=dir={{KERNEL_DIR}}/jfr,maxage=" + jfr.keepDays + ",maxsize=" + jfr.keepMegabytes);
+        }
+        return agents;
+    }
 
-        commandList.add("-R-ea");
+    /**
+     * Agent sources, compiled at install time by {@link #buildAgent(Path, String, String...)}, and the cells they send.
+     */
+    Map<Path, String> agentResources() {
+        var resources = new LinkedHashMap<Path, String>();
+        if(metrics() || idleRelease!=null) {
+            resources.put(Path.of("kernelmetrics.java"), loadResource("kernelmetrics.java"));
+        }
+        if(idleRelease!=null) {
+            resources.put(Path.of("kernelidle.java"), loadResource("kernelidle.java"));
+        }
+        if(warmupAgent() || traceStartup) {
+            resources.put(Path.of("kernelwarmup.java"), loadResource("kernelwarmup.java"));
+        }
+        if(traceStartup) {
+            resources.put(Path.of("kerneltrace.java"), loadResource("kerneltrace.java"));
+        }
+        if(jfrAgent()) {
+            resources.put(Path.of("kerneljfr.java"), loadResource("kerneljfr.java"));
+        }
+        if(!resources.isEmpty()) {
+            resources.put(Path.of("ipcproxykernel.java"), loadResource("ipcproxykernel.java"));
+        }
+        if(initScript!=null) {
+            resources.put(Path.of("init.jsh"), readInitScript());
+        }
+        if(warmup) {
+            resources.put(Path.of("warmup.jsh"), kernel.warmupCell());
+        }
+        return resources;
+    }
 
-        kernel.jvmArguments().forEach(jvmArg -> {
-            commandList.add("-R" + jvmArg);
-        });
-        
-        commandList.add(scriptRef.orElse(kernel.scriptRef()));
-        
-        
-        commandList.addAll(kernel.arguments());
+    String readInitScript() {
+        try {
+            return Files.readString(initScript);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read init script " + initScript + ": " + e.getMessage());
+        }
+    }
 
-        KernelJson json = new KernelJson(commandList, 
-                                name() + postfix, 
-                                kernel.language(), 
-                                INTERRUPT_MODE, 
-                                kernel.options(compilerOptions(), timeout),
-                                kernelDir() + postfix,
-                                Map.of());
-        return json;
+    /**
+     * The environment of the kernel, including how to find the init script for kernels that run it themselves.
+     */
+    Map<String, String> env() {
+        var env = new LinkedHashMap<String, String>(kernel.options(compilerOptions(), timeout));
+        env.putAll(initScriptEnv());
+        return env;
     }
 
-    static OSName os;
+    Map<String, String> initScriptEnv() {
+        return initScript!=null ? kernel.initScript("{{KERNEL_DIR}}/init.jsh", readInitScript()) : Map.of();
+    }
 
-    @Override
-    public Integer call() throws Exception { 
-        
-        os = findOSName();
-        if (os == null) {
-            throw new RuntimeException("Operating system is not recognized. Installation failed.");
+    /**
+     * Compiles an agent from its kernel resource, and the other sources it uses, and packages it as <code>agent/&lt;name&gt;.jar</code>.
+     */
+    void buildAgent(Path fullKernelDir, String name, String... sources) throws IOException {
+        if(!canCompileProxy()) {
+            throw new IllegalStateException("--metrics, --warmup, --init-script, --trace-startup, --idle-release and --jfr need the installer to run on a jdk 17 or newer with a compiler to build their agent.");
+        }
+        Path jar = fullKernelDir.resolve("agent").resolve(name + ".jar");
+        Path classes = fullKernelDir.resolve("agent").resolve(name);
+        var sourceFiles = new ArrayList<>(List.of(name + ".java", "ipcproxykernel.java"));
+        sourceFiles.addAll(List.of(sources));
+        if (!compile(fullKernelDir, "agent/" + name, sourceFiles.toArray(new String[0])) && exists(jar)) {
+            return;
+        }
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), name);
+        manifest.getMainAttributes().put(new Attributes.Name("Agent-Class"), name);
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new JarOutputStream(bytes, manifest); var files = Files.list(classes)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".class")).sorted().collect(Collectors.toList())) {
+                out.putNextEntry(new JarEntry(file.getFileName().toString()));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
         }
+        AssetCache.writeAtomically(jar, bytes.toByteArray());
+        verbose("Packaged " + name + " agent to " + jar);
+    }
 
-        String postfix = "";
-        if(useIPC || "ipc".equals(System.getenv("COLAB_JUPYTER_TRANSPORT"))) {
-            useIPC = true;
-            postfix = "-tcp";
+    private KernelJson generateProxyKernelJson(KernelJson kernelJson) {
+        return specs().pythonProxyKernel(specOptions(postfix), kernelJson);
+    }
+
+    /**
+     * The jvm arguments that jbang gets as <code>-R</code> options, or that go in the argfile for direct launch.
+     */
+    List<String> jvmArguments() {
+        var jvmArgs = new ArrayList<String>(KernelSpecs.jvmArguments(kernel));
+        jvmArgs.addAll(tuningArguments());
+        return jvmArgs;
+    }
+
+    /**
+     * The jvm arguments of <code>--profile</code>, <code>--jfr</code> and <code>--idle-release</code>.
+     */
+    List<String> tuningArguments() {
+        var jvmArgs = new ArrayList<String>();
+        if(profile!=null) {
+            jvmArgs.addAll(profile.jvmArguments);
         }
+        jvmArgs.addAll(jfr.jvmArguments(javaFeature()));
+        if(idleRelease!=null) {
+            // the serial collector would otherwise shrink its heap over several full GCs, not with the one of a release
+            jvmArgs.add("-XX:-ShrinkHeapInSteps");
+        }
+        return jvmArgs;
+    }
 
+    /**
+     * Resolves java, main class and classpath once with jbang and writes them to a
+     * <code>kernel.args</code> argfile, so Jupyter can start the kernel without going through jbang.
+     */
+    KernelJson generateDirectKernelJson(String postfix) throws IOException {
+        JsonNode info = jbangInfo(pinned(scriptRef.orElse(kernel.scriptRef())), dependencies());
+        String jdk = info.path("availableJdkPath").asText("");
+        if (jdk.isEmpty()) {
+            throw new IllegalStateException("jbang could not provide a jdk for Java " + java() + ". Please install one before using --launch=direct.");
+        }
+        String mainClass = kernel.mainClass()!=null ? kernel.mainClass() : info.path("mainClass").asText("");
+        if (mainClass.isEmpty()) {
+            throw new IllegalStateException("Could not determine main class of " + kernel.scriptRef() + ". Please use --launch=jbang.");
+        }
 
-        List<String> installationPath = null;
-        if(jupyterKernelDir!=null) {
-            installationPath = List.of(jupyterKernelDir);
-        } else {
-            installationPath = getInstallationPaths(os);
+        var argfile = new ArrayList<String>();
+        if(!debug.isEmpty()) {
+            var jdwp = new LinkedHashMap<String, String>(Map.of("transport", "dt_socket", "server", "y", "suspend", "y", "address", "4004"));
+            jdwp.putAll(debug);
+            argfile.add("-agentlib:jdwp=" + jdwp.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(",")));
+        }
+        if(preview) {
+            argfile.add("--enable-preview");
         }
+        if(assertions) {
+            argfile.add("-ea");
+        }
+        argfile.addAll(jvmArguments());
+        argfile.add("-cp");
+        argfile.add(String.join(File.pathSeparator, dependencies().isEmpty() ? classpath(info) : mergedClasspath(classpath(info))));
+        argfile.add(mainClass);
 
-        verbose("Considering " + String.join(",", installationPath));
-        
-        if(!exists(Paths.get(installationPath.get(0)))) {
-            System.out.println("Creating " + installationPath.get(0));
-            Files.createDirectories(Paths.get(installationPath.get(0)));
-           // throw new IllegalStateException("Jupyter Kernel path " + installationPath.get(0) + " does not exist. Please ensure it is available before trying to install a kernel.");
+        String javaHome = jlink ? jlinkRuntime(info).toString() : jdk;
+        var commandList = new ArrayList<String>();
+        commandList.add(Path.of(javaHome, "bin", os == OSName.WINDOWS ? "java.exe" : "java").toString());
+        if(cdsArchive!=null) {
+            commandList.addAll(cdsArchive.runtimeFlags);
         }
+        commandList.addAll(javaAgents());
+        commandList.add("@{{KERNEL_DIR}}/kernel.args");
 
-        
-        KernelJson json = generateJavaKernelJson(postfix);
-        if(writeKernel(installationPath.get(0), json)) {
+        for (String arg : kernel.arguments()) {
+            var matcher = DEPS_MARKER.matcher(arg);
+            StringBuilder resolved = new StringBuilder();
+            while (matcher.find()) {
+                var jars = new ArrayList<String>();
+                for (String gav : matcher.group(1).split(",")) {
+                    jars.addAll(classpath(jbangInfo(pinned(gav.trim()))));
+                }
+                matcher.appendReplacement(resolved, Matcher.quoteReplacement(String.join(File.pathSeparator, jars)));
+            }
+            matcher.appendTail(resolved);
+            commandList.add(resolved.toString());
+        }
 
-        if(useIPC) {
-            json = generateProxyKernelJson(json);
-            writeKernel(installationPath.get(0), json);
+        String args = argfile.stream().map(installkernel::argfileQuote).collect(Collectors.joining("\n", "", "\n"));
+        if(pool!=null) {
+            if(jdkFeature(jdkVersion(info)) < 17) {
+                throw new IllegalStateException("--pool needs Java 17 or newer for the kernel, " + kernel.displayName() + " resolved Java " + jdkVersion(info) + ". Use --java=17+.");
+            }
+            return generatePooledKernelJson(postfix, commandList, argfile, args);
         }
-        
-        if(kernel.info()!=null) {
-                out.println("For more information on this specific kernel: " + kernel.info());
+        if(crac) {
+            if(listModules(javaHome).contains("jdk.crac")) {
+                return generateCracKernelJson(postfix, commandList, argfile, args);
+            }
+            out.println(format("%s at %s does not support CRaC. Installing %s to start the regular way.", jdkVersion(info), javaHome, kernel.displayName()));
         }
-        out.println("\nBrought to you by https://github.com/jupyter-java");
-    
-        return 0;
-    } else {
-        return 1;
-    }
+        return new KernelJson(commandList,
+                                name() + postfix,
+                                kernel.language(),
+                                INTERRUPT_MODE,
+                                env(),
+                                kernelDir() + postfix,
+                                withResources(agentResources(), Path.of("kernel.args"), args));
     }
 
-  
-
-    private boolean writeKernel(String installationPath, KernelJson original) throws JsonProcessingException {
-        ObjectMapper objectMapper = setupObjectMapper();
+    /**
+     * The libraries the kernel prescribes and those of <code>--deps</code>.
+     */
+    List<String> dependencies() {
+        var dependencies = new ArrayList<String>(kernel.dependencies());
+        dependencies.addAll(deps);
+        return dependencies;
+    }
 
-        var fullKernelDir = Paths.get(installationPath, original.kernelDir).toAbsolutePath().toString();
-        var output = Paths.get(fullKernelDir, "kernel.json");
+    static final Pattern SIGNATURE_FILE = Pattern.compile("META-INF/[^/]+\\.(SF|RSA|DSA|EC)");
 
-        if(!force) {
-            if(exists(output)) {
-                out.println("A kernel already installed to " + output + ". Use --force to overwrite.");
-                return false;
+    /**
+     * The classpath with its jars replaced by <code>classpath.jar</code>, which {@link #mergeClasspath(List, Path)}
+     * merges them into at install time. Signed jars stay on their own, merging would drop their signatures.
+     */
+    List<String> mergedClasspath(List<String> classpath) throws IOException {
+        mergedJars = new ArrayList<>();
+        var result = new ArrayList<>(List.of("{{KERNEL_DIR}}/classpath.jar"));
+        for (String entry : classpath) {
+            if (entry.endsWith(".jar") && !isSigned(Path.of(entry))) {
+                mergedJars.add(entry);
+            } else {
+                result.add(entry);
             }
         }
+        verbose(format("Merging %d of %d classpath entries into classpath.jar", mergedJars.size(), classpath.size()));
+        return result;
+    }
 
-        final var json = new KernelJson(original.argv.stream().map(arg -> arg.replace("{{KERNEL_DIR}}", fullKernelDir)).collect(Collectors.toList()), 
-                                original.displayName, 
-                                original.language, 
-                                original.interruptMode, 
-                                original.env,
-                                original.kernelDir,
-                                original.resources);
+    static boolean isSigned(Path jar) throws IOException {
+        try (var zip = new ZipFile(jar.toFile())) {
+            return zip.stream().anyMatch(entry -> SIGNATURE_FILE.matcher(entry.getName()).matches());
+        }
+    }
 
-        String jsonString = objectMapper.writeValueAsString(json);
+    static final List<String> PACKAGE_ATTRIBUTES = List.of("Specification-Title", "Specification-Version", "Specification-Vendor",
+            "Implementation-Title", "Implementation-Version", "Implementation-Vendor");
 
-       
-        verbose(format("Writing: %s\nto %s", jsonString, output));
-        try {
-            if (!exists(output.getParent())) {
-                createDirectories(output.getParent());
-            }
-            write(output, jsonString.getBytes(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            out.println(json.displayName + " kernel installed to " + output);
-            if(kernel.logo()!=null) {
-                try {
-                    URL logoUrl = kernel.logo().toURL();
-                    java.awt.image.BufferedImage originalImage = ImageIO.read(logoUrl);
-                    
-                    // Scale to 32x32
-                    BufferedImage image32 = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D g32 = image32.createGraphics();
-                    g32.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                    g32.drawImage(originalImage, 0, 0, 32, 32, null);
-                    g32.dispose();
-                    
-                    // Scale to 64x64
-                    BufferedImage image64 = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D g64 = image64.createGraphics();
-                    g64.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                    g64.drawImage(originalImage, 0, 0, 64, 64, null);
-                    g64.dispose();
-                    
-                    // Save scaled images
-                    Path logo32Path = Paths.get(installationPath, json.kernelDir, "logo-32x32.png");
-                    Path logo64Path = Paths.get(installationPath, json.kernelDir, "logo-64x64.png");
-                    
-                    ImageIO.write(image32, "PNG", logo32Path.toFile());
-                    ImageIO.write(image64, "PNG", logo64Path.toFile());
-                    
-                    out.println("32x32 logo saved to " + output.getParent().relativize(logo32Path));
-                    out.println("64x64 logosaved to " + output.getParent().relativize(logo64Path));
-                } catch (IOException e) {
-                    System.err.println("Could not download and save logo files: " + e.getMessage());
+    /**
+     * Merges jars into one, so the kernel's class loader opens a single archive and finds every class with one lookup
+     * in its central directory, rather than trying jar after jar. As on the classpath the first jar with an entry wins,
+     * except for service registrations, which are concatenated. The versions in each jar's manifest move to sections
+     * for its packages, so {@link Package} still reports them.
+     * @return false if <code>target</code> is already merged from jars with the same paths and content
+     */
+    boolean mergeClasspath(List<String> jars, Path target) throws IOException {
+        var stamp = new ArrayList<String>();
+        for (String jar : jars) {
+            stamp.add(jar);
+            stamp.add(sha256(Path.of(jar)));
+        }
+        Path mergedFrom = target.resolveSibling(target.getFileName() + ".sha256");
+        String hash = sha256(stamp.toArray(new String[0]));
+        if (exists(target) && exists(mergedFrom) && Files.readString(mergedFrom).equals(hash)) {
+            verbose(target + " is up to date");
+            return false;
+        }
+
+        // which jar each entry comes from, and the manifest, before any entry is written
+        var owners = new LinkedHashMap<String, Integer>();
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Created-By", "jbang-catalog installkernel");
+        for (int i = 0; i < jars.size(); i++) {
+            try (var jar = new JarFile(jars.get(i), false)) {
+                Manifest own = jar.getManifest();
+                if (own != null && "true".equalsIgnoreCase(own.getMainAttributes().getValue("Multi-Release"))) {
+                    manifest.getMainAttributes().putValue("Multi-Release", "true");
                 }
-            }
-            json.resources.forEach((path, content) -> {
-                try {
-                    Path resource = Paths.get(installationPath, json.kernelDir, path.toString());
-                    System.out.println(format("Additional file: %s", resource));
-                    if (!exists(resource.getParent())) {
-                        createDirectories(resource.getParent());
+                for (var entries = jar.entries(); entries.hasMoreElements(); ) {
+                    String name = entries.nextElement().getName();
+                    if (owners.putIfAbsent(name, i) == null && own != null && name.endsWith(".class") && name.lastIndexOf('/') > 0
+                            && !name.startsWith("META-INF/")) {
+                        String section = name.substring(0, name.lastIndexOf('/') + 1);
+                        if (!manifest.getEntries().containsKey(section)) {
+                            var attributes = new Attributes();
+                            for (String attribute : PACKAGE_ATTRIBUTES) {
+                                Attributes ownSection = own.getAttributes(section);
+                                String value = ownSection != null && ownSection.getValue(attribute) != null ? ownSection.getValue(attribute) : own.getMainAttributes().getValue(attribute);
+                                if (value != null) {
+                                    attributes.putValue(attribute, value);
+                                }
+                            }
+                            if (!attributes.isEmpty()) {
+                                manifest.getEntries().put(section, attributes);
+                            }
+                        }
                     }
-                    write(resource, content.getBytes(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                } catch (IOException e) {
-                   System.err.println("Could not write resource " + path + " to " + output);
                 }
-            });
-
-            
-       } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+            }
         }
-       return true;
 
+        var services = new TreeMap<String, ByteArrayOutputStream>();
+        int duplicates = 0;
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (var out = new JarOutputStream(Files.newOutputStream(temp), manifest)) {
+                for (int i = 0; i < jars.size(); i++) {
+                    try (var zip = new ZipFile(jars.get(i))) {
+                        for (var entries = zip.entries(); entries.hasMoreElements(); ) {
+                            ZipEntry entry = entries.nextElement();
+                            String name = entry.getName();
+                            if (name.startsWith("META-INF/services/") && !entry.isDirectory()) {
+                                var service = services.computeIfAbsent(name, key -> new ByteArrayOutputStream());
+                                try (var in = zip.getInputStream(entry)) {
+                                    service.write(in.readAllBytes());
+                                }
+                                service.write('\n');
+                                continue;
+                            }
+                            if (owners.get(name) != i) {
+                                duplicates += entry.isDirectory() ? 0 : 1;
+                                continue;
+                            }
+                            if (name.equals("META-INF/MANIFEST.MF") || name.equals("META-INF/INDEX.LIST") || name.endsWith("module-info.class")
+                                    || SIGNATURE_FILE.matcher(name).matches()) {
+                                continue; // of the jars they came with, the classpath ignores modules and the index
+                            }
+                            var copy = new JarEntry(name);
+                            copy.setTime(entry.getTime());
+                            out.putNextEntry(copy);
+                            try (var in = zip.getInputStream(entry)) {
+                                in.transferTo(out);
+                            }
+                            out.closeEntry();
+                        }
+                    }
+                }
+                for (var service : services.entrySet()) {
+                    out.putNextEntry(new JarEntry(service.getKey()));
+                    out.write(service.getValue().toByteArray());
+                    out.closeEntry();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        AssetCache.writeAtomically(mergedFrom, hash.getBytes(StandardCharsets.US_ASCII));
+        changedFiles++;
+        out.println(format("Merged %d jars into %s (%d MB), %d duplicate entries left out", jars.size(), target, Files.size(target) / (1024 * 1024), duplicates));
+        return true;
     }
 
-    private ObjectMapper setupObjectMapper() {
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-        DefaultPrettyPrinter prettyPrinter = new DefaultPrettyPrinter();
-        prettyPrinter.indentArraysWith(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
-        objectMapper.setDefaultPrettyPrinter(prettyPrinter);
-        return objectMapper;
+    /**
+     * A kernel that restores a checkpoint taken by {@link #checkpointCrac(Path, KernelJson)}. <code>crac.args</code>
+     * is the direct launch argfile with <code>kernelcrac</code> as main class, which runs the kernel's main class,
+     * so the same command starts the kernel the regular way when the jvm cannot restore the image.
+     */
+    KernelJson generateCracKernelJson(String postfix, List<String> directArgv, List<String> argfile, String directArgs) {
+        var cracArgs = new ArrayList<String>(argfile.subList(0, argfile.size() - 1));
+        int cp = cracArgs.lastIndexOf("-cp");
+        cracArgs.set(cp + 1, cracArgs.get(cp + 1) + File.pathSeparator + "{{KERNEL_DIR}}/crac-launcher");
+        cracArgs.add("kernelcrac");
+        cracArgs.add(argfile.get(argfile.size() - 1));
+
+        int kernelArgs = directArgv.indexOf("@{{KERNEL_DIR}}/kernel.args");
+        var commandList = new ArrayList<String>();
+        commandList.add(directArgv.get(0));
+        commandList.addAll(CRAC_RESTORE_FLAGS);
+        commandList.add("-Djupyter.connection_file=" + CONNECTION_FILE_MARKER);
+        commandList.addAll(directArgv.subList(1, kernelArgs));
+        commandList.add("@{{KERNEL_DIR}}/crac.args");
+        commandList.addAll(directArgv.subList(kernelArgs + 1, directArgv.size()));
+
+        return new KernelJson(commandList,
+                                name() + postfix,
+                                kernel.language(),
+                                INTERRUPT_MODE,
+                                env(),
+                                kernelDir() + postfix,
+                                withResources(agentResources(),
+                                        Path.of("kernel.args"), directArgs,
+                                        Path.of("crac.args"), cracArgs.stream().map(installkernel::argfileQuote).collect(Collectors.joining("\n", "", "\n")),
+                                        Path.of("kernelcrac.java"), loadResource("kernelcrac.java"),
+                                        Path.of("kernelpool.java"), loadResource("kernelpool.java")));
     }
 
-    void verbose(String msg) { 
-        if(verbose) {
-            out.println(msg);
+    static final List<String> CRAC_RESTORE_FLAGS = List.of("-XX:CRaCRestoreFrom={{KERNEL_DIR}}/crac", "-XX:+CRaCIgnoreRestoreIfUnavailable");
+
+    /**
+     * Boots the kernel's jvm with <code>kernelcrac</code>, which warms it up and checkpoints it to <code>crac</code>
+     * in the kernel directory before the kernel binds anything. Without an image kernel.json starts the kernel the
+     * regular way, so a failed checkpoint does not fail the install.
+     */
+    void checkpointCrac(Path fullKernelDir, KernelJson json) throws IOException, InterruptedException {
+        Path image = fullKernelDir.resolve("crac");
+        deleteRecursively(image);
+        createDirectories(image);
+
+        var argv = new ArrayList<String>();
+        for (String arg : json.argv) {
+            if (CRAC_RESTORE_FLAGS.contains(arg) || arg.startsWith("-Djupyter.connection_file=")) {
+                continue;
+            }
+            // agents and the kernel keep the {connection_file} marker, it is only known once restored
+            argv.add(arg.replace("{{KERNEL_DIR}}", fullKernelDir.toString()));
+            if (argv.size() == 1) {
+                argv.add("-XX:CRaCCheckpointTo=" + image);
+                argv.add("-Dkernelcrac.checkpoint=true");
+            }
         }
-    }
 
-    public static String loadResource(String resourcePath) {
-        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-        try (InputStream inputStream = classLoader.getResourceAsStream(resourcePath);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-            return reader.lines().collect(Collectors.joining("\n"));
+        out.println("Taking CRaC checkpoint of " + json.displayName + "...");
+        Path log = fullKernelDir.resolve("crac.log");
+        verbose("Running " + String.join(" ", argv));
+        Process process = new ProcessBuilder(argv)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        if (!process.waitFor(CRAC_CHECKPOINT_SECONDS, TimeUnit.SECONDS)) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+        boolean taken;
+        try (var files = Files.list(image)) {
+            // a failed checkpoint leaves CRIU's logs, but no process images
+            taken = files.anyMatch(file -> file.getFileName().toString().matches("core-\\d+\\.img"));
+        }
+        if (taken) {
+            out.println("CRaC checkpoint saved to " + image);
+        } else {
+            out.println("Could not take a CRaC checkpoint, see " + log + ". CRIU needs to run as root or with CAP_CHECKPOINT_RESTORE, i.e. "
+                    + "'sudo chown root:root $JAVA_HOME/lib/criu && sudo chmod u+s $JAVA_HOME/lib/criu'. The kernel starts the regular way until installed again.");
+        }
+    }
+
+    static final long CRAC_CHECKPOINT_SECONDS = 120;
+
+    /** A configuration {@link #autotune()} tries and what it measured, one entry per launch. */
+    static final class TuningCandidate {
+        final int java;
+        final Path jdk;
+        final Profile profile;
+        final List<Long> ready = new ArrayList<>();
+        final List<Long> firstRun = new ArrayList<>();
+        final List<Long> warmRun = new ArrayList<>();
+        String error;
+
+        TuningCandidate(int java, Path jdk, Profile profile) {
+            this.java = java;
+            this.jdk = jdk;
+            this.profile = profile;
+        }
+
+        String profileName() {
+            return profile == null ? "default" : profile.name().toLowerCase();
+        }
+
+        /** Median time to ready plus the medians of the corpus' first and warm run, what a user waits for in a short session. */
+        long score() {
+            return median(ready) + median(firstRun) + median(warmRun);
+        }
+
+        static long median(List<Long> values) {
+            return Bench.median(values.stream().mapToLong(Long::longValue).sorted().toArray());
+        }
+
+        String toJson() {
+            return format("{\"java\": %d, \"jdk\": %s, \"profile\": \"%s\", ", java, KernelJson.quote(jdk.toString()), profileName())
+                    + (error != null ? "\"error\": " + KernelJson.quote(error) + "}"
+                    : format("\"score_ms\": %d, \"ready_ms\": %s, \"first_run_ms\": %s, \"warm_run_ms\": %s}",
+                            score() / 1_000_000, millis(ready), millis(firstRun), millis(warmRun)));
+        }
+
+        static String millis(List<Long> nanos) {
+            return nanos.stream().map(value -> String.valueOf(value / 1_000_000)).collect(Collectors.joining(", ", "[", "]"));
+        }
+    }
+
+    static final long AUTOTUNE_LAUNCH_SECONDS = 600;
+
+    /**
+     * Installs the kernel with each candidate jdk and profile to a temporary directory and launches it like
+     * <code>bench-cells</code> does, with two runs of its corpus: the first includes compiling the cells, the
+     * second shows the warm jvm. Sets <code>--java</code> and <code>--profile</code> to the fastest.
+     */
+    void autotune() throws IOException, InterruptedException {
+        var jdks = installedJdks();
+        jdks.keySet().removeIf(feature -> !allowsJava(java(), feature));
+        if (jdks.isEmpty()) {
+            throw new IllegalStateException("No jdk on this machine is Java " + java() + ". --autotune only tries jdks that are installed already, i.e. with 'jbang jdk install'.");
+        }
+        var profiles = new ArrayList<Profile>();
+        if (profile != null) {
+            profiles.add(profile);
+        } else {
+            profiles.add(null);
+            profiles.addAll(List.of(Profile.values()));
+            if (idleRelease != null) {
+                profiles.remove(Profile.THROUGHPUT);
+            }
+        }
+        var candidates = new ArrayList<TuningCandidate>();
+        jdks.forEach((feature, jdk) -> profiles.forEach(p -> candidates.add(new TuningCandidate(feature, jdk, p))));
+
+        Path work = Files.createTempDirectory("kernel-autotune");
+        try {
+            for (int i = 0; i < candidates.size(); i++) {
+                TuningCandidate candidate = candidates.get(i);
+                out.println(format("Autotuning %s %d/%d: Java %d, %s profile", kernel.displayName(), i + 1, candidates.size(), candidate.java, candidate.profileName()));
+                installkernel trial = forKernel(kernel);
+                trial.autotune = false;
+                trial.java = String.valueOf(candidate.java);
+                trial.profile = candidate.profile;
+                trial.jupyterKernelDir = work.toString();
+                trial.kernelDir = kernelDir() + "-" + (i + 1);
+                trial.force = true;
+                trial.useIPC = false;
+                if (pool != null) {
+                    // pooled jvms run the direct launch argfile, a pool would time its handover instead
+                    trial.pool = null;
+                    trial.launch = LaunchMode.DIRECT;
+                }
+                try {
+                    trial.install(work.toString(), "");
+                    Path kernelJson = work.resolve(trial.kernelDir).resolve("kernel.json");
+                    for (int launch = 0; launch < autotuneLaunches; launch++) {
+                        BenchCells.Result result = BenchCells.run(trial.kernelDir, kernelJson, 2, AUTOTUNE_LAUNCH_SECONDS, verbose);
+                        String failed = result.failedCells();
+                        if (!failed.isEmpty()) {
+                            throw new IllegalStateException("cells failed: " + failed);
+                        }
+                        candidate.ready.add(result.readyNanos);
+                        candidate.firstRun.add(result.round(0));
+                        candidate.warmRun.add(result.round(1));
+                    }
+                    out.println(format("  ready %d ms, first run %d ms, warm run %d ms", TuningCandidate.median(candidate.ready) / 1_000_000,
+                            TuningCandidate.median(candidate.firstRun) / 1_000_000, TuningCandidate.median(candidate.warmRun) / 1_000_000));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    candidate.error = String.valueOf(e.getMessage());
+                    out.println("  failed: " + candidate.error);
+                }
+            }
+        } finally {
+            deleteRecursively(work);
+        }
+
+        TuningCandidate winner = candidates.stream().filter(candidate -> candidate.error == null)
+                .min(Comparator.comparingLong(TuningCandidate::score))
+                .orElseThrow(() -> new IllegalStateException("No candidate of --autotune ran the corpus on " + kernel.displayName() + ", see above why."));
+        out.println(format("Autotune picked Java %d with the %s profile for %s", winner.java, winner.profileName(), kernel.displayName()));
+        java = String.valueOf(winner.java);
+        profile = winner.profile;
+        autotuneReport = format("{\n  \"kernel\": \"%s\",\n  \"timestamp\": \"%s\",\n  \"processors\": %d,\n  \"launches\": %d,\n  \"winner\": %s,\n  \"candidates\": [\n    %s\n  ]\n}\n",
+                kernel.name().toLowerCase(), Instant.now(), Runtime.getRuntime().availableProcessors(), autotuneLaunches, winner.toJson(),
+                candidates.stream().map(TuningCandidate::toJson).collect(Collectors.joining(",\n    ")));
+    }
+
+    /**
+     * The jdks jbang can use without downloading one, by feature version: those in its cache, <code>JAVA_HOME</code>
+     * and the one running the installer.
+     */
+    static TreeMap<Integer, Path> installedJdks() throws IOException {
+        var homes = new ArrayList<Path>();
+        String cache = System.getenv("JBANG_CACHE_DIR");
+        Path jdks = (cache != null ? Path.of(cache) : Path.of(System.getProperty("user.home"), ".jbang", "cache")).resolve("jdks");
+        if (Files.isDirectory(jdks)) {
+            try (var dirs = Files.list(jdks)) {
+                dirs.sorted().forEach(homes::add);
+            }
+        }
+        if (System.getenv("JAVA_HOME") != null) {
+            homes.add(Path.of(System.getenv("JAVA_HOME")));
+        }
+        homes.add(Path.of(System.getProperty("java.home")));
+
+        var result = new TreeMap<Integer, Path>();
+        for (Path home : homes) {
+            String version = jdkVersion(home);
+            if (version != null) {
+                result.putIfAbsent(jdkFeature(version), home);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether a jdk satisfies a version as <code>--java</code> takes it: '17' means Java 17 only, '17+' Java 17 or higher.
+     */
+    static boolean allowsJava(String javaVersion, int feature) {
+        int required = jdkFeature(javaVersion.replace("+", ""));
+        return javaVersion.endsWith("+") ? feature >= required : feature == required;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!exists(dir)) {
+            return;
+        }
+        try (var files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    Set<String> listModules(String javaHome) throws IOException {
+        String exe = os == OSName.WINDOWS ? ".exe" : "";
+        var modules = new TreeSet<String>();
+        for (String line : runCommand(List.of(Path.of(javaHome, "bin", "java" + exe).toString(), "--list-modules")).split("\\R")) {
+            if (!line.isBlank()) {
+                modules.add(line.trim().split("@")[0]);
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * A kernel that starts <code>kernelpool.java</code> as a thin client, which hands the connection file to a
+     * pooled kernel JVM. Pooled JVMs run the same argfile as direct launch, with <code>kernelpool</code> appended
+     * to the classpath so an archive from <code>--cds</code> still applies, and <code>kernelpool</code> as main class.
+     * The direct launch argv is kept as fallback for when no warm kernel is available.
+     */
+    KernelJson generatePooledKernelJson(String postfix, List<String> directArgv, List<String> argfile, String directArgs) {
+        this.directArgv = directArgv;
+        var workerArgs = new ArrayList<String>();
+        if(cdsArchive!=null) {
+            workerArgs.addAll(cdsArchive.runtimeFlags);
+        }
+        // the worker's agents wait for kernelpool to hand over the connection file
+        workerArgs.addAll(javaAgents());
+        workerArgs.addAll(argfile.subList(0, argfile.size() - 1));
+        int cp = workerArgs.lastIndexOf("-cp");
+        workerArgs.set(cp + 1, workerArgs.get(cp + 1) + File.pathSeparator + "{{KERNEL_DIR}}/pool");
+        workerArgs.add("kernelpool");
+
+        var config = new TreeMap<String, String>();
+        config.put("java", directArgv.get(0));
+        config.put("main", argfile.get(argfile.size() - 1));
+        config.put("size", String.valueOf(pool));
+        config.put("worker.args", "{{KERNEL_DIR}}/pool.args");
+        List<String> appArgs = directArgv.subList(directArgv.indexOf("@{{KERNEL_DIR}}/kernel.args") + 1, directArgv.size());
+        for (int i = 0; i < appArgs.size(); i++) {
+            config.put("arg." + i, appArgs.get(i));
+        }
+        for (int i = 0; i < directArgv.size(); i++) {
+            config.put("fallback." + i, directArgv.get(i));
+        }
+        String properties = config.entrySet().stream()
+                .map(e -> e.getKey() + "=" + propertiesEscape(e.getValue()))
+                .collect(Collectors.joining("\n", "", "\n"));
+
+        String javaCmd = Path.of(System.getProperty("java.home"), "bin", os == OSName.WINDOWS ? "java.exe" : "java").toString();
+        return new KernelJson(List.of(javaCmd,
+                                "-XX:TieredStopAtLevel=1",
+                                "-XX:+UseSerialGC",
+                                "-Xshare:auto",
+                                "-cp", "{{KERNEL_DIR}}/pool",
+                                "kernelpool",
+                                "client",
+                                "{{KERNEL_DIR}}/pool.properties",
+                                CONNECTION_FILE_MARKER),
+                                name() + postfix,
+                                kernel.language(),
+                                INTERRUPT_MODE,
+                                env(),
+                                kernelDir() + postfix,
+                                withResources(agentResources(),
+                                        Path.of("kernel.args"), directArgs,
+                                        Path.of("pool.args"), workerArgs.stream().map(installkernel::argfileQuote).collect(Collectors.joining("\n", "", "\n")),
+                                        Path.of("pool.properties"), properties,
+                                        Path.of("kernelpool.java"), loadResource("kernelpool.java")));
+    }
+
+    static Map<Path, String> withResources(Map<Path, String> resources, Object... pathsAndContent) {
+        var all = new LinkedHashMap<Path, String>(resources);
+        for (int i = 0; i < pathsAndContent.length; i += 2) {
+            all.put((Path) pathsAndContent[i], (String) pathsAndContent[i + 1]);
+        }
+        return all;
+    }
+
+    static String propertiesEscape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                default: escaped.append(c);
+            }
+        }
+        if (escaped.length() > 0 && escaped.charAt(0) == ' ') {
+            escaped.insert(0, '\\');
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Modules kernels commonly use through service loading or reflection, which jdeps cannot see.
+     * Included whenever the jdk has them.
+     */
+    static final List<String> JLINK_EXTRA_MODULES = List.of("jdk.zipfs", "jdk.crypto.ec", "jdk.charsets", "jdk.management", "jdk.jfr");
+
+    /**
+     * Links a runtime from <code>jdk</code> with the kernel's declared modules and what jdeps finds on its classpath.
+     * Runtimes live in <code>runtimes/&lt;hash&gt;</code> next to the asset cache, keyed by jdk and module set,
+     * so kernels that need the same modules share one image.
+     */
+    Path jlinkRuntime(JsonNode info) throws IOException {
+        String jdk = info.path("availableJdkPath").asText("");
+        String exe = os == OSName.WINDOWS ? ".exe" : "";
+        Path jlinkCommand = Path.of(jdk, "bin", "jlink" + exe);
+        if (!exists(jlinkCommand)) {
+            throw new IllegalStateException(jdk + " has no jlink. --jlink needs a full jdk for Java " + java() + ".");
+        }
+        String jdkVersion = jdkVersion(info);
+        int feature = jdkFeature(jdkVersion!=null ? jdkVersion : java().replace("+", ""));
+
+        var available = listModules(jdk);
+
+        var modules = new TreeSet<String>(List.of("java.base"));
+        modules.addAll(kernel.modules());
+        for (int i = 0; i < kernel.jvmArguments().size() - 1; i++) {
+            if (kernel.jvmArguments().get(i).equals("--add-modules")) {
+                modules.addAll(Arrays.asList(kernel.jvmArguments().get(i + 1).split(",")));
+            }
+        }
+        JLINK_EXTRA_MODULES.stream().filter(available::contains).forEach(modules::add);
+        if (!debug.isEmpty()) {
+            modules.add("jdk.jdwp.agent");
+        }
+        if (metrics() || idleRelease!=null) {
+            modules.addAll(List.of("java.instrument", "java.management", "jdk.management", "jdk.httpserver"));
+        }
+
+        var jars = classpath(info).stream().filter(jar -> exists(Path.of(jar))).collect(Collectors.toList());
+        var jdeps = new ArrayList<>(List.of(Path.of(jdk, "bin", "jdeps" + exe).toString(), "--print-module-deps", "--ignore-missing-deps",
+                "--multi-release", String.valueOf(feature), "--class-path", String.join(File.pathSeparator, jars)));
+        jdeps.addAll(jars);
+        try {
+            String deps = runCommand(jdeps).trim();
+            String last = deps.lines().reduce((first, second) -> second).orElse("");
+            modules.addAll(Arrays.asList(last.split(",")));
         } catch (IOException e) {
-            throw new IllegalStateException("Could not load resource: " + resourcePath, e);
+            System.err.println("jdeps could not analyze the classpath of " + kernel.displayName() + ", linking java.se and jdk.jshell: " + e.getMessage());
+            modules.add("java.se");
+            modules.add("jdk.jshell");
         }
-    } 
-    
+        modules.removeIf(module -> module.isBlank() || !available.contains(module));
 
-public class KernelJson {
-    public final List<String> argv;
-    public final String displayName;
-    public final String language;
-    public final String interruptMode;
-    public final Map<String, String> env;
-    @JsonIgnore public final String kernelDir;
-    @JsonIgnore public final Map<Path, String> resources;
+        var options = new ArrayList<>(List.of("--strip-debug", "--no-header-files", "--no-man-pages"));
+        if (feature >= 18) {
+            options.add("--generate-cds-archive");
+        }
 
-    public KernelJson(List<String> argv, String displayName, String language, String interruptMode, Map<String, String> env, String kernelDir, Map<Path, String> resources) {
-        this.argv = argv;
-        this.displayName = displayName;
-        this.language = language;
-        this.interruptMode = interruptMode;
-        this.env = env;
-        this.kernelDir = kernelDir;
-        this.resources = resources;
+        Path runtimes = assetCache().root.resolveSibling("runtimes");
+        Path runtime = runtimes.resolve(sha256(jdk, jdkVersion, String.join(",", modules), String.join(" ", options)).substring(0, 16));
+        if (exists(runtime.resolve("bin").resolve("java" + exe))) {
+            verbose("Using runtime " + runtime + " with " + String.join(",", modules));
+            return runtime;
+        }
+
+        createDirectories(runtimes);
+        Path staging = runtimes.resolve(".staging-" + UUID.randomUUID());
+        var command = new ArrayList<>(List.of(jlinkCommand.toString(), "--add-modules", String.join(",", modules), "--output", staging.toString()));
+        command.addAll(options);
+        out.println("Linking runtime for " + kernel.displayName() + " with " + String.join(",", modules));
+        try {
+            verbose("Running " + String.join(" ", command));
+            // jlink reports errors on stdout
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+            if (process.waitFor() != 0) {
+                throw new IOException(format("jlink failed with exit code %d", process.exitValue()));
+            }
+            Files.move(staging, runtime, StandardCopyOption.ATOMIC_MOVE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while linking " + runtime, e);
+        } catch (IOException e) {
+            if (!exists(runtime.resolve("bin").resolve("java" + exe))) {
+                throw e;
+            }
+            // linked by a concurrent install in the meantime
+        } finally {
+            if (exists(staging)) {
+                try (var files = Files.walk(staging)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        }
+        out.println("Runtime linked to " + runtime);
+        return runtime;
+    }
+
+    static List<String> classpath(JsonNode info) {
+        var jars = new ArrayList<String>();
+        String applicationJar = info.path("applicationJar").asText("");
+        if (!applicationJar.isEmpty()) {
+            jars.add(applicationJar);
+        }
+        info.path("resolvedDependencies").forEach(dep -> {
+            if (!jars.contains(dep.asText())) {
+                jars.add(dep.asText());
+            }
+        });
+        return jars;
+    }
+
+    /**
+     * Quotes an argument the way the java launcher expects it inside an <code>@argfile</code>.
+     */
+    static String argfileQuote(String arg) {
+        if (arg.isEmpty() || arg.chars().anyMatch(c -> Character.isWhitespace(c) || c == '"' || c == '\'' || c == '#' || c == '\\')) {
+            return '"' + arg.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+        return arg;
+    }
+
+    /**
+     * Splits an <code>@argfile</code> into its arguments the way the java launcher does, the reverse of {@link #argfileQuote(String)}.
+     */
+    static List<String> argfileSplit(String text) {
+        var args = new ArrayList<String>();
+        var arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && i + 1 < text.length()) {
+                    char next = text.charAt(++i);
+                    switch (next) {
+                        case 'n': arg.append('\n'); break;
+                        case 'r': arg.append('\r'); break;
+                        case 't': arg.append('\t'); break;
+                        case 'f': arg.append('\f'); break;
+                        case '\n': case '\r':
+                            // a line continuation, leading white space of the next line is skipped
+                            while (i + 1 < text.length() && Character.isWhitespace(text.charAt(i + 1))) {
+                                i++;
+                            }
+                            break;
+                        default: arg.append(next);
+                    }
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else if (c == '#' && !inArg) {
+                while (i + 1 < text.length() && text.charAt(i + 1) != '\n' && text.charAt(i + 1) != '\r') {
+                    i++;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    KernelJson generateJavaKernelJson(String postfix) throws IOException {
+        if(launch == LaunchMode.DIRECT || pool!=null || jlink || crac || !dependencies().isEmpty()) {
+            return generateDirectKernelJson(postfix);
+        }
+
+        return specs().javaKernel(specOptions(postfix));
+    }
+
+    private KernelSpecs specs;
+
+    /** Shared with the copies of {@link #forKernel(Kernels)}, so commands are looked up once per install. */
+    synchronized KernelSpecs specs() {
+        if (specs == null) {
+            specs = new KernelSpecs(os, assetCache());
+        }
+        return specs;
+    }
+
+    /**
+     * The options of this install for {@link KernelSpecs}, with versions pinned and agents and archives added.
+     */
+    KernelSpecs.Options specOptions(String postfix) {
+        var jvmArgs = new ArrayList<String>(tuningArguments());
+        jvmArgs.addAll(javaAgents());
+        if(cdsArchive!=null) {
+            jvmArgs.addAll(cdsArchive.runtimeFlags);
+        }
+        return KernelSpecs.Options.builder(kernel.name())
+                .name(name)
+                .kernelDir(kernelDir)
+                .postfix(postfix)
+                .java(pinnedJava==null?java():pinnedJava)
+                .scriptRef(scriptRef.orElse(null))
+                .offline(pin)
+                .preview(preview)
+                .assertions(assertions)
+                .compilerOptions(compilerOptions)
+                .timeout(timeout)
+                .debug(debug)
+                .jvmArguments(jvmArgs)
+                .env(initScriptEnv())
+                .resources(agentResources())
+                .dependencies(deps)
+                .pinnedVersions(pinnedVersions)
+                .proxyArguments(proxyArguments())
+                .build();
+    }
+
+    /**
+     * The queue limits of <code>--proxy-hwm</code>, <code>--proxy-iopub-buffer</code> and <code>--proxy-iopub-policy</code>
+     * as arguments of <code>ipc_proxy_kernel.py</code>, which also writes its channel counters next to the kernel's metrics.
+     */
+    List<String> proxyArguments() {
+        var arguments = new ArrayList<String>();
+        if(proxyHwm!=null) {
+            arguments.add("--hwm=" + proxyHwm);
+        }
+        if(proxyIopubBuffer!=null) {
+            arguments.add("--iopub-buffer=" + proxyIopubBuffer);
+        }
+        if(proxyIopubPolicy!=null) {
+            arguments.add("--iopub-policy=" + proxyIopubPolicy.name().toLowerCase());
+        }
+        if(metrics()) {
+            arguments.add("--stats-dir={{KERNEL_DIR}}/metrics");
+        }
+        return arguments;
+    }
+
+    /**
+     * Asks jbang to resolve the script reference without running it.
+     * @return the parsed output of <code>jbang info tools</code>
+     */
+    JsonNode jbangInfo(String ref) throws IOException {
+        return jbangInfo(ref, List.of());
+    }
+
+    /**
+     * Asks jbang to resolve the script reference together with extra dependencies, so their versions are
+     * resolved against each other as on a <code>jbang --deps</code> launch.
+     */
+    JsonNode jbangInfo(String ref, List<String> deps) throws IOException {
+        Path command = findCommand("jbang");
+        if (command == null) {
+            throw new IllegalStateException("jbang executable not found. Please ensure it is available before running install kernel.");
+        }
+        var commandList = new ArrayList<>(List.of(command.toAbsolutePath().toString(), "info", "tools", "--java", java()));
+        if (!deps.isEmpty()) {
+            commandList.add("--deps");
+            commandList.add(deps.stream().map(this::pinned).collect(Collectors.joining(",")));
+        }
+        commandList.add(ref);
+        return objectMapper().readTree(runCommand(commandList));
+    }
+
+    String runCommand(List<String> command) throws IOException {
+        verbose("Running " + String.join(" ", command));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(format("%s failed with exit code %d", command.get(0), process.exitValue()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command.get(0), e);
+        }
+        return output;
+    }
+
+    private static final Pattern DEPS_MARKER = Pattern.compile("%\\{deps:([^}]*)}");
+
+    /**
+     * Resolves the kernel script reference, every gav in <code>%{deps:...}</code> arguments and the extra dependencies once,
+     * so the kernel can be launched with fixed versions out of the local maven repository.
+     */
+    void pinVersions() throws IOException {
+        String ref = scriptRef.orElse(kernel.scriptRef());
+        JsonNode info = jbangInfo(ref);
+        String jdkVersion = jdkVersion(info);
+        if (jdkVersion != null) {
+            pinnedJava = String.valueOf(jdkFeature(jdkVersion));
+        }
+        pinVersion(ref, info);
+
+        for (String arg : kernel.arguments()) {
+            var matcher = DEPS_MARKER.matcher(arg);
+            while (matcher.find()) {
+                for (String gav : matcher.group(1).split(",")) {
+                    pinVersion(gav.trim(), jbangInfo(gav.trim()));
+                }
+            }
+        }
+        for (String gav : dependencies()) {
+            pinVersion(gav, jbangInfo(gav));
+        }
+        pinnedVersions.forEach((from, to) -> out.println("Pinned " + from + " to " + to));
+    }
+
+    /**
+     * Finds the version jbang resolved for a gav by looking up its jar in the local maven repository.
+     */
+    private void pinVersion(String gav, JsonNode info) {
+        String[] parts = gav.split("@", 2);
+        String[] coords = parts[0].split(":");
+        if (coords.length < 3) {
+            return; // not a gav, i.e. an alias or a file
+        }
+        String dir = "/" + coords[0].replace('.', '/') + "/" + coords[1] + "/";
+        List<String> jars = new ArrayList<>();
+        jars.add(info.path("applicationJar").asText(""));
+        info.path("resolvedDependencies").forEach(dep -> jars.add(dep.asText()));
+
+        for (String jar : jars) {
+            String path = jar.replace(File.separatorChar, '/');
+            int index = path.indexOf(dir);
+            if (index >= 0) {
+                String version = path.substring(index + dir.length()).split("/")[0];
+                coords[coords.length - 1] = version;
+                pinnedVersions.put(gav, String.join(":", coords) + (parts.length > 1 ? "@" + parts[1] : ""));
+                return;
+            }
+        }
+        out.println("Could not determine resolved version of " + gav + ". Leaving it as is.");
+    }
+
+    String pinned(String gav) {
+        return KernelSpecs.pinned(pinnedVersions, gav);
+    }
+
+    String pinnedDeps(String arg) {
+        return KernelSpecs.pinnedDeps(pinnedVersions, arg);
+    }
+
+    /**
+     * Reads JAVA_VERSION from the release file of the jdk jbang resolved, i.e. "17.0.9".
+     * @return null if the jdk could not be determined
+     */
+    static String jdkVersion(JsonNode info) {
+        String jdk = info.path("availableJdkPath").asText("");
+        return jdk.isEmpty() ? null : jdkVersion(Path.of(jdk));
+    }
+
+    /**
+     * Reads JAVA_VERSION from the release file of a jdk.
+     * @return null if it is not a jdk
+     */
+    static String jdkVersion(Path jdk) {
+        if (!exists(jdk.resolve("release"))) {
+            return null;
+        }
+        try {
+            return Files.readAllLines(jdk.resolve("release")).stream()
+                    .filter(line -> line.startsWith("JAVA_VERSION="))
+                    .map(line -> line.substring("JAVA_VERSION=".length()).replace("\"", ""))
+                    .findFirst().orElse(null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static int jdkFeature(String jdkVersion) {
+        String feature = jdkVersion.startsWith("1.") ? jdkVersion.substring(2) : jdkVersion;
+        return Integer.parseInt(feature.split("[^0-9]")[0]);
+    }
+
+    /**
+     * The SHA-256 of a file's content, read in chunks rather than all at once.
+     */
+    static String sha256(Path file) throws IOException {
+        try (var in = new DigestInputStream(Files.newInputStream(file), MessageDigest.getInstance("SHA-256"))) {
+            in.transferTo(OutputStream.nullOutputStream());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : in.getMessageDigest().digest()) {
+                hex.append(format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sha256(String... parts) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(Objects.toString(part, "").getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Picks the archive flavour the kernel's jdk supports. The archive name is keyed by
+     * jdk version and classpath so a new kernel version or jdk gets a fresh archive.
+     */
+    CdsArchive cdsArchive() throws IOException {
+        JsonNode info = jbangInfo(scriptRef.orElse(kernel.scriptRef()), dependencies());
+        String jdkVersion = jdkVersion(info);
+        if (jdkVersion == null) {
+            out.println("Could not determine the jdk used by the kernel. Skipping class data sharing archive.");
+            return null;
+        }
+        List<String> classpath = classpath(info);
+
+        String key = sha256(jdkVersion, String.join(File.pathSeparator, classpath), kernel.scriptRef()).substring(0, 12);
+        int feature = jdkFeature(jdkVersion);
+        verbose(format("Kernel runs on jdk %s, archive key %s", jdkVersion, key));
+
+        if (feature >= 25) {
+            String file = "cds-" + key + ".aot";
+            return new CdsArchive(file,
+                    List.of("-XX:AOTCache={{KERNEL_DIR}}/" + file),
+                    List.of("-XX:AOTCacheOutput={{KERNEL_DIR}}/" + file),
+                    List.of());
+        } else if (feature == 24) {
+            String file = "cds-" + key + ".aot";
+            String conf = "{{KERNEL_DIR}}/cds-" + key + ".aotconf";
+            return new CdsArchive(file,
+                    List.of("-XX:AOTCache={{KERNEL_DIR}}/" + file),
+                    List.of("-XX:AOTMode=record", "-XX:AOTConfiguration=" + conf),
+                    List.of("-XX:AOTMode=create", "-XX:AOTConfiguration=" + conf, "-XX:AOTCache={{KERNEL_DIR}}/" + file));
+        } else if (feature >= 19) {
+            // jvm recreates the archive on its own if the jdk gets updated underneath it
+            String file = "cds-" + key + ".jsa";
+            List<String> flags = List.of("-XX:+AutoCreateSharedArchive", "-XX:SharedArchiveFile={{KERNEL_DIR}}/" + file);
+            return new CdsArchive(file, flags, flags, List.of());
+        } else if (feature >= 13) {
+            String file = "cds-" + key + ".jsa";
+            return new CdsArchive(file,
+                    List.of("-XX:SharedArchiveFile={{KERNEL_DIR}}/" + file),
+                    List.of("-XX:ArchiveClassesAtExit={{KERNEL_DIR}}/" + file),
+                    List.of());
+        }
+        out.println("Java " + jdkVersion + " does not support dynamic class data sharing archives. Skipping.");
+        return null;
+    }
+
+    /**
+     * Launches the kernel once with the training flags, lets it reach the point
+     * where it accepts connections and then shuts it down so the jvm dumps the archive.
+     */
+    void trainCds(Path fullKernelDir, KernelJson json) throws IOException, InterruptedException {
+        Path archive = fullKernelDir.resolve(cdsArchive.file);
+        if (exists(archive)) {
+            out.println("Class data sharing archive " + archive + " is up to date.");
+            return;
+        }
+        try (var stale = Files.newDirectoryStream(fullKernelDir, "cds-*")) {
+            for (Path old : stale) {
+                verbose("Removing stale archive " + old);
+                Files.delete(old);
+            }
+        }
+
+        Path connectionFile = Files.createTempFile("kernel-training-", ".json");
+        try {
+            ConnectionInfo connection = ConnectionInfo.create();
+            write(connectionFile, connection.toJson().getBytes(StandardCharsets.UTF_8));
+
+            List<String> argv = withJvmFlags(json.argv, cdsArchive.runtimeFlags, cdsArchive.trainingFlags, fullKernelDir, connectionFile);
+            out.println("Training launch of " + json.displayName + " to generate " + archive.getFileName());
+            Process process = new ProcessBuilder(argv).redirectErrorStream(true)
+                    .redirectOutput(verbose ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (connection.awaitListening(process, 300_000)) {
+                process.waitFor(cdsTrainingSeconds, TimeUnit.SECONDS);
+            }
+            process.destroy();
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+
+            if (!cdsArchive.createFlags.isEmpty()) {
+                argv = withJvmFlags(json.argv, cdsArchive.runtimeFlags, cdsArchive.createFlags, fullKernelDir, connectionFile);
+                Process create = new ProcessBuilder(argv).redirectErrorStream(true)
+                        .redirectOutput(verbose ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                create.waitFor(300, TimeUnit.SECONDS);
+            }
+        } finally {
+            Files.deleteIfExists(connectionFile);
+        }
+
+        if (exists(archive)) {
+            out.println("Class data sharing archive saved to " + archive);
+        } else {
+            System.err.println("Training launch did not produce " + archive + ". Kernel will start without it.");
+        }
+    }
+
+    /**
+     * Returns argv with the kernel dir and connection file filled in and the <code>-R</code> flags in
+     * <code>from</code> replaced by the ones in <code>to</code>.
+     */
+    static List<String> withJvmFlags(List<String> argv, List<String> from, List<String> to, Path fullKernelDir, Path connectionFile) {
+        List<String> result = new ArrayList<>();
+        boolean replaced = false;
+        for (String arg : argv) {
+            if (from.stream().anyMatch(flag -> arg.equals("-R" + flag) || arg.equals(flag))) {
+                if (!replaced) {
+                    String prefix = arg.startsWith("-R") ? "-R" : "";
+                    to.forEach(flag -> result.add(prefix + flag));
+                    replaced = true;
+                }
+                continue;
+            }
+            result.add(arg);
+        }
+        return result.stream()
+                .map(arg -> arg.replace("{{KERNEL_DIR}}", fullKernelDir.toString()).replace(CONNECTION_FILE_MARKER, connectionFile.toString()))
+                .collect(Collectors.toList());
+    }
+
+    /** The platform kernels are installed for, null where it is not recognized. */
+    final OSName os = findOSName();
+
+    CdsArchive cdsArchive;
+
+    String postfix = "";
+
+    /** Kernel directories written by this install and how many files actually changed, used by sync. */
+    List<String> writtenKernelDirs = new ArrayList<>();
+    int changedFiles;
+
+    /** The argv direct launch would use, pooled kernels fall back to it. */
+    List<String> directArgv;
+
+    /** The jars {@link #install(String, String)} merges into <code>classpath.jar</code>, null if nothing is merged. */
+    List<String> mergedJars;
+
+    /** What {@link #autotune()} measured, written to <code>autotune.json</code>. */
+    String autotuneReport;
+
+    String pinnedJava;
+
+    Map<String, String> pinnedVersions = new LinkedHashMap<>();
+
+    @Override
+    public Integer call() throws Exception { 
+        
+        List<String> installationPath = prepare();
+
+        List<Kernels> toInstall = kernels();
+        if(toInstall.size()==1) {
+            kernel = toInstall.get(0);
+            if(!install(installationPath.get(0), postfix)) {
+                return 1;
+            }
+            if(kernel.info()!=null) {
+                    out.println("For more information on this specific kernel: " + kernel.info());
+            }
+            pruneAssetCache();
+            out.println("\nBrought to you by https://github.com/jupyter-java");
+            return 0;
+        }
+
+        if(name!=null || kernelDir!=null || scriptRef.isPresent()) {
+            throw new IllegalArgumentException("--name, --kernel-dir and --script-ref can only be used when installing a single kernel.");
+        }
+
+        // candidates timed side by side would slow each other down
+        int threads = autotune ? 1 : parallelism!=null ? parallelism : Math.min(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, toInstall.size())));
+        var results = new LinkedHashMap<Kernels, Future<String>>();
+        try {
+            for (Kernels k : toInstall) {
+                installkernel installer = forKernel(k);
+                String target = installationPath.get(0);
+                String kernelPostfix = postfix;
+                results.put(k, executor.submit(() -> {
+                    long start = System.nanoTime();
+                    boolean installed = installer.install(target, kernelPostfix);
+                    return format("%-10s %6d ms", installed ? "installed" : "skipped", (System.nanoTime() - start) / 1_000_000);
+                }));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        boolean failed = false;
+        out.println();
+        for (var result : results.entrySet()) {
+            String status;
+            try {
+                status = result.getValue().get();
+            } catch (ExecutionException e) {
+                status = "failed     " + e.getCause().getMessage();
+                failed = true;
+            }
+            out.println(format("%-24s %s", result.getKey().displayName(), status));
+        }
+        pruneAssetCache();
+        out.println("\nBrought to you by https://github.com/jupyter-java");
+        return failed ? 1 : 0;
+    }
+
+    void pruneAssetCache() {
+        try {
+            int pruned = assetCache().prune();
+            if (pruned > 0) {
+                verbose("Pruned " + pruned + " unreferenced blob(s) from " + assetCache().root);
+            }
+        } catch (IOException e) {
+            // the kernels are installed, a cache that could not be pruned only takes space
+            verbose("Could not prune the asset cache: " + e);
+        }
+    }
+
+    /**
+     * Detects the OS and makes sure the kernel directory exists.
+     * @return the directories kernels could be installed to, the first is used
+     */
+    List<String> prepare() throws IOException {
+        if (os == null) {
+            throw new RuntimeException("Operating system is not recognized. Installation failed.");
+        }
+
+        if(useIPC || "ipc".equals(System.getenv("COLAB_JUPYTER_TRANSPORT"))) {
+            useIPC = true;
+            postfix = "-tcp";
+        }
+
+
+        List<String> installationPath = null;
+        if(jupyterKernelDir!=null) {
+            installationPath = List.of(jupyterKernelDir);
+        } else {
+            installationPath = getInstallationPaths(os);
+        }
+
+        verbose("Considering " + String.join(",", installationPath));
+        
+        if(!exists(Paths.get(installationPath.get(0)))) {
+            System.out.println("Creating " + installationPath.get(0));
+            Files.createDirectories(Paths.get(installationPath.get(0)));
+           // throw new IllegalStateException("Jupyter Kernel path " + installationPath.get(0) + " does not exist. Please ensure it is available before trying to install a kernel.");
+        }
+        return installationPath;
+    }
+
+    /**
+     * Finds an installed kernel by directory name, or a kernel directory or kernel.json by path.
+     */
+    Path findKernelJson(String kernel) {
+        Path path = Path.of(kernel);
+        if (Files.isRegularFile(path)) {
+            return path;
+        }
+        if (exists(path.resolve("kernel.json"))) {
+            return path.resolve("kernel.json");
+        }
+        List<String> paths = jupyterKernelDir != null ? List.of(jupyterKernelDir) : getInstallationPaths(os);
+        return paths.stream()
+                .map(dir -> Path.of(dir, kernel, "kernel.json"))
+                .filter(Files::exists)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No kernel.json found for " + kernel + " in " + String.join(",", paths)));
+    }
+
+    /**
+     * Installs the current kernel and, when asked for, its proxy kernel.
+     * @return false if the kernel was already installed
+     */
+    boolean install(String installationPath, String postfix) throws IOException, InterruptedException {
+        if(crac && (pool!=null || cds || jlink || metricsPort!=null || !debug.isEmpty())) {
+            throw new IllegalArgumentException("--crac cannot be combined with --pool, --cds, --jlink, --metrics-port or --debug. "
+                    + "The checkpoint already has the classes loaded and cannot be taken with listening sockets.");
+        }
+
+        if(idleRelease!=null && profile == Profile.THROUGHPUT) {
+            out.println("The parallel collector of --profile=throughput keeps its heap committed, --idle-release will only run a GC when the kernel is idle.");
+        }
+
+        if(autotune) {
+            autotune();
+        }
+
+        if(pin) {
+            pinVersions();
+        }
+
+        if(cds) {
+            cdsArchive = cdsArchive();
+        }
+
+        KernelJson json = generateJavaKernelJson(postfix);
+        if(!writeKernel(installationPath, json)) {
+            return false;
+        }
+
+        if(autotuneReport!=null) {
+            AssetCache.writeAtomically(Paths.get(installationPath, json.kernelDir, "autotune.json").toAbsolutePath(), autotuneReport.getBytes(StandardCharsets.UTF_8));
+        }
+
+        if(mergedJars!=null) {
+            mergeClasspath(mergedJars, Paths.get(installationPath, json.kernelDir, "classpath.jar").toAbsolutePath());
+        }
+
+        if(pool!=null) {
+            compile(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "pool", "kernelpool.java");
+        }
+
+        if(metrics()) {
+            buildAgent(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "kernelmetrics");
+            createDirectories(Paths.get(installationPath, json.kernelDir, "metrics"));
+        }
+
+        if(warmupAgent()) {
+            buildAgent(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "kernelwarmup");
+        }
+
+        if(traceStartup) {
+            buildAgent(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "kerneltrace", "kernelwarmup.java");
+        }
+
+        if(idleRelease!=null) {
+            buildAgent(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "kernelidle", "kernelmetrics.java");
+        }
+
+        if(jfr != Jfr.OFF) {
+            createDirectories(Paths.get(installationPath, json.kernelDir, "jfr"));
+        }
+
+        if(jfrAgent()) {
+            buildAgent(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), "kerneljfr");
+        }
+
+        if(json.resources.containsKey(Path.of("crac.args"))) {
+            Path fullKernelDir = Paths.get(installationPath, json.kernelDir).toAbsolutePath();
+            compile(fullKernelDir, "crac-launcher", "kernelcrac.java", "kernelpool.java");
+            checkpointCrac(fullKernelDir, json);
+        }
+
+        if(cdsArchive!=null) {
+            KernelJson training = json;
+            if(pool!=null) {
+                // train the kernel as direct launch starts it, pooled JVMs share its argfile and classpath prefix
+                training = new KernelJson(directArgv, json.displayName, json.language, json.interruptMode, json.env, json.kernelDir, json.resources);
+            }
+            trainCds(Paths.get(installationPath, json.kernelDir).toAbsolutePath(), training);
+        }
+
+        if(useIPC) {
+            if(ipcProxy == ProxyImplementation.JAVA && canCompileProxy()) {
+                if(proxyHwm!=null || proxyIopubBuffer!=null || proxyIopubPolicy!=null) {
+                    out.println("The java proxy kernel does not queue messages, --proxy-hwm, --proxy-iopub-buffer and --proxy-iopub-policy only apply with --ipc-proxy=python.");
+                }
+                json = generateJavaProxyKernelJson(json);
+                if(writeKernel(installationPath, json)) {
+                    compileProxy(Paths.get(installationPath, json.kernelDir).toAbsolutePath());
+                }
+            } else {
+                if(ipcProxy == ProxyImplementation.JAVA) {
+                    out.println("Java proxy kernel needs a jdk 17 or newer with a compiler to install. Falling back to the python proxy.");
+                }
+                json = generateProxyKernelJson(json);
+                writeKernel(installationPath, json);
+                if(metrics()) {
+                    createDirectories(Paths.get(installationPath, json.kernelDir, "metrics"));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A copy of this command with the same options that installs <code>k</code>, so kernels can be installed in parallel.
+     * Options are copied one by one, collections included, and what an install works out for itself starts out empty.
+     */
+    installkernel forKernel(Kernels k) {
+        installkernel copy = new installkernel();
+        copy.kernels = kernels == null ? null : new ArrayList<>(kernels);
+        copy.parallelism = parallelism;
+        copy.kernel = k;
+        copy.verbose = verbose;
+        copy.force = force;
+        copy.name = name;
+        copy.jupyterKernelDir = jupyterKernelDir;
+        copy.kernelDir = kernelDir;
+        copy.debug = debug == null ? null : new LinkedHashMap<>(debug);
+        copy.scriptRef = scriptRef;
+        copy.preview = preview;
+        copy.assertions = assertions;
+        copy.parameters = parameters;
+        copy.java = java;
+        copy.timeout = timeout;
+        copy.useIPC = useIPC;
+        copy.launch = launch;
+        copy.pool = pool;
+        copy.jfr = jfr;
+        copy.initScript = initScript;
+        copy.warmup = warmup;
+        copy.metrics = metrics;
+        copy.metricsPort = metricsPort;
+        copy.traceStartup = traceStartup;
+        copy.idleRelease = idleRelease;
+        copy.crac = crac;
+        copy.deps = deps == null ? null : new ArrayList<>(deps);
+        copy.autotune = autotune;
+        copy.autotuneLaunches = autotuneLaunches;
+        copy.jlink = jlink;
+        copy.profile = profile;
+        copy.assetCacheDir = assetCacheDir;
+        copy.ipcProxy = ipcProxy;
+        copy.proxyHwm = proxyHwm;
+        copy.proxyIopubBuffer = proxyIopubBuffer;
+        copy.proxyIopubPolicy = proxyIopubPolicy;
+        copy.pin = pin;
+        copy.cds = cds;
+        copy.cdsTrainingSeconds = cdsTrainingSeconds;
+        copy.compilerOptions = compilerOptions;
+        copy.postfix = postfix;
+        copy.specs = specs();
+        return copy;
+    }
+  
+
+    private boolean writeKernel(String installationPath, KernelJson json) {
+        var specs = specs();
+        var output = Paths.get(installationPath, json.kernelDir, "kernel.json").toAbsolutePath();
+        verbose(format("Writing: %s\nto %s", json.toJson(), output));
+        try {
+            var written = specs.write(specs.template(json, kernel.logo(), pin), Paths.get(installationPath), force);
+            if(!written.installed) {
+                out.println("A kernel already installed to " + output + ". Use --force to overwrite.");
+                return false;
+            }
+            writtenKernelDirs.add(json.kernelDir);
+            changedFiles += written.changed.size();
+            if(written.changed.contains(output)) {
+                out.println(json.displayName + " kernel installed to " + output);
+            } else {
+                out.println(json.displayName + " kernel at " + output + " is up to date");
+            }
+            if(written.logoError!=null) {
+                System.err.println("Could not download and save logo files: " + written.logoError.getMessage());
+            }
+            written.changed.stream().filter(path -> !path.equals(output)).forEach(path -> {
+                if(path.getFileName().toString().startsWith("logo-")) {
+                    out.println(path.getFileName().toString().substring(5, path.getFileName().toString().length() - 4) + " logo saved to " + output.getParent().relativize(path));
+                } else {
+                    out.println(format("Additional file: %s", path));
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private static ObjectMapper objectMapper;
+
+    private static synchronized ObjectMapper objectMapper() {
+        if (objectMapper == null) {
+            objectMapper = setupObjectMapper();
+        }
+        return objectMapper;
+    }
+
+    private static ObjectMapper setupObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        DefaultPrettyPrinter prettyPrinter = new DefaultPrettyPrinter();
+        prettyPrinter.indentArraysWith(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
+        objectMapper.setDefaultPrettyPrinter(prettyPrinter);
+        return objectMapper;
+    }
+
+    void verbose(String msg) { 
+        if(verbose) {
+            out.println(msg);
+        }
+    }
+
+    public static String loadResource(String resourcePath) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream inputStream = classLoader.getResourceAsStream(resourcePath);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.joining("\n"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load resource: " + resourcePath, e);
+        }
+    } 
+    
+
+public static class KernelJson {
+    public final List<String> argv;
+    public final String displayName;
+    public final String language;
+    public final String interruptMode;
+    public final Map<String, String> env;
+    @JsonIgnore public final String kernelDir;
+    @JsonIgnore public final Map<Path, String> resources;
+
+    public KernelJson(List<String> argv, String displayName, String language, String interruptMode, Map<String, String> env, String kernelDir, Map<Path, String> resources) {
+        this.argv = argv;
+        this.displayName = displayName;
+        this.language = language;
+        this.interruptMode = interruptMode;
+        this.env = env;
+        this.kernelDir = kernelDir;
+        this.resources = resources;
+    }
+
+    /**
+     * Writes the same pretty printed JSON the ObjectMapper would, without loading jackson databind
+     * just for one small file. Env keys are sorted so unchanged kernels give identical bytes.
+     */
+    public String toJson() {
+        String nl = System.lineSeparator();
+        var json = new StringBuilder("{").append(nl);
+        json.append("  \"argv\" : ");
+        if (argv.isEmpty()) {
+            json.append("[ ]");
+        } else {
+            json.append("[").append(nl);
+            for (int i = 0; i < argv.size(); i++) {
+                json.append("    ").append(quote(argv.get(i))).append(i < argv.size() - 1 ? "," : "").append(nl);
+            }
+            json.append("  ]");
+        }
+        field(json, "display_name", displayName);
+        field(json, "language", language);
+        field(json, "interrupt_mode", interruptMode);
+        if (env != null) {
+            json.append(",").append(nl).append("  \"env\" : ");
+            if (env.isEmpty()) {
+                json.append("{ }");
+            } else {
+                json.append("{").append(nl);
+                var keys = new ArrayList<>(env.keySet());
+                Collections.sort(keys);
+                for (int i = 0; i < keys.size(); i++) {
+                    json.append("    ").append(quote(keys.get(i))).append(" : ").append(quote(env.get(keys.get(i))))
+                            .append(i < keys.size() - 1 ? "," : "").append(nl);
+                }
+                json.append("  }");
+            }
+        }
+        return json.append(nl).append("}").toString();
+    }
+
+    private static void field(StringBuilder json, String name, String value) {
+        if (value != null) {
+            json.append(",").append(System.lineSeparator()).append("  \"").append(name).append("\" : ").append(quote(value));
+        }
+    }
+
+    static String quote(String value) {
+        var quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                case '\b': quoted.append("\\b"); break;
+                case '\f': quoted.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(format("\\u%04X", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
+
+/**
+ * Kernelspec generation without forking an installer, i.e. for a provisioning script that writes kernels for every user
+ * on login. Nothing here parses options or calls System.exit. It is not a library: it is nested in the installer script,
+ * in the default package, and shares its {@link installkernel#loadResource}, {@link installkernel#lookupCommand} and
+ * the kernel catalog with it, so only a jbang script in the default package that lists installkernel.java in its
+ * <code>//SOURCES</code> can call it. Options are immutable and the commands found on the PATH are cached per instance,
+ * so one instance can be shared by any number of threads.
+ *
+ * Covers kernels launched by jbang and their python proxy. Direct launch, pools, jlink, class data sharing and the
+ * java proxy resolve or compile things at install time and stay with the installer.
+ *
+ * <pre>
+ * //SOURCES installkernel.java
+ * var specs = new installkernel.KernelSpecs();
+ * var template = specs.template(specs.javaKernel(installkernel.KernelSpecs.Options.builder("jjava").build()));
+ * specs.writeAll(template, userKernelDirs, false, executor).values().forEach(CompletableFuture::join);
+ * </pre>
+ */
+static class KernelSpecs {
+    final OSName os;
+    final AssetCache assetCache;
+    /** Commands found on the PATH, looked up once per instance. */
+    private final Map<String, Optional<Path>> commands = new ConcurrentHashMap<>();
+
+    public KernelSpecs() {
+        this(AssetCache.defaultRoot());
+    }
+
+    public KernelSpecs(Path assetCacheDir) {
+        this(findOSName(), new AssetCache(assetCacheDir));
+        if (os == null) {
+            throw new IllegalStateException("Operating system is not recognized.");
+        }
+    }
+
+    KernelSpecs(OSName os, AssetCache assetCache) {
+        this.os = os;
+        this.assetCache = assetCache;
+    }
+
+    Path command(String cmd) {
+        return commands.computeIfAbsent(cmd, c -> Optional.ofNullable(lookupCommand(c, os))).orElse(null);
+    }
+
+    /**
+     * The kernel started by jbang, resolving it on every start.
+     */
+    public KernelJson javaKernel(Options options) {
+        Path command = command("jbang");
+        if (command == null) {
+            throw new IllegalStateException("jbang executable not found. Please ensure it is available before running install kernel.");
+        }
+        Kernels kernel = options.kernel;
+        var commandList = new ArrayList<String>();
+        commandList.add(command.toAbsolutePath().toString());
+        commandList.add("--java");
+        commandList.add(options.java);
+
+        if (options.offline) {
+            commandList.add("--offline");
+        }
+        options.debug.forEach((key, value) -> commandList.add("-d" + key + "=" + value));
+        if (options.preview) {
+            commandList.add("--enable-preview");
+        }
+        if (options.assertions) {
+            commandList.add("--ea");
+        }
+        if (kernel.mainClass() != null) {
+            commandList.add("-m");
+            commandList.add(kernel.mainClass());
+        }
+        if (!options.dependencies.isEmpty()) {
+            commandList.add("--deps");
+            commandList.add(options.dependencies.stream().map(gav -> pinned(options.pinnedVersions, gav)).collect(Collectors.joining(",")));
+        }
+        jvmArguments(kernel).forEach(jvmArg -> commandList.add("-R" + jvmArg));
+        options.jvmArguments.forEach(jvmArg -> commandList.add("-R" + jvmArg));
+
+        commandList.add(pinned(options.pinnedVersions, options.scriptRef));
+        kernel.arguments().forEach(arg -> commandList.add(pinnedDeps(options.pinnedVersions, arg)));
+
+        var env = new LinkedHashMap<String, String>(kernel.options(compilerOptions(options.compilerOptions, options.preview, options.java), options.timeout));
+        env.putAll(options.env);
+        return new KernelJson(List.copyOf(commandList),
+                options.name + options.postfix,
+                kernel.language(),
+                INTERRUPT_MODE,
+                Collections.unmodifiableMap(env),
+                options.kernelDir + options.postfix,
+                options.resources);
+    }
+
+    /**
+     * A kernel that runs <code>ipc_proxy_kernel.py</code> in front of <code>kernelJson</code>.
+     */
+    public KernelJson pythonProxyKernel(Options options, KernelJson kernelJson) {
+        Path pythonCommand = command("python");
+        if (pythonCommand == null) {
+            pythonCommand = command("python3");
+        }
+        if (pythonCommand == null) {
+            throw new IllegalStateException("Python executable not found in PATH. Please ensure it is available before installing kernel.");
+        }
+        var argv = new ArrayList<String>(List.of(pythonCommand.toAbsolutePath().toString(),
+                "{{KERNEL_DIR}}/ipc_proxy_kernel.py",
+                CONNECTION_FILE_MARKER,
+                "--kernel=" + kernelJson.kernelDir));
+        argv.addAll(options.proxyArguments);
+        return new KernelJson(
+                List.copyOf(argv),
+                options.name,
+                options.kernel.language(),
+                INTERRUPT_MODE,
+                Map.of(),
+                options.kernelDir,
+                Map.of(Path.of("ipc_proxy_kernel.py"), loadResource("ipc_proxy_kernel.py")));
+    }
+
+    public Template template(KernelJson json) {
+        return template(json, null, false);
+    }
+
+    /**
+     * Prepares writing a kernel to any number of directories, with its logo fetched from <code>logo</code> once.
+     */
+    public Template template(KernelJson json, URI logo, boolean offline) {
+        return new Template(this, json, logo, offline);
+    }
+
+    /**
+     * Writes the kernel to <code>kernelsDir</code>, linking its logos to the asset cache.
+     * Files that already have the right content are left alone.
+     */
+    public Written write(Template template, Path kernelsDir, boolean force) throws IOException {
+        var fullKernelDir = kernelsDir.resolve(template.json.kernelDir).toAbsolutePath();
+        var output = fullKernelDir.resolve("kernel.json");
+        if (!force && exists(output)) {
+            return new Written(output, false, List.of(), null);
+        }
+
+        var changed = new ArrayList<Path>();
+        if (AssetCache.writeIfChanged(output, template.json(fullKernelDir).getBytes(StandardCharsets.UTF_8))) {
+            changed.add(output);
+        }
+        IOException logoError = null;
+        try {
+            for (var logo : template.logos().entrySet()) {
+                Path logoPath = fullKernelDir.resolve("logo-" + logo.getKey() + "x" + logo.getKey() + ".png");
+                if (AssetCache.link(logo.getValue(), logoPath)) {
+                    changed.add(logoPath);
+                }
+            }
+        } catch (IOException e) {
+            logoError = e;
+        }
+        for (var resource : template.json.resources.entrySet()) {
+            byte[] content = template.resources.get(resource.getKey());
+            if (content == null) {
+                content = resource.getValue().replace("{{KERNEL_DIR}}", fullKernelDir.toString()).getBytes(StandardCharsets.UTF_8);
+            }
+            // a copy of its own, users edit these in place to tweak a kernel
+            Path target = fullKernelDir.resolve(resource.getKey().toString());
+            if (AssetCache.writeIfChanged(target, content)) {
+                changed.add(target);
+            }
+        }
+        return new Written(output, true, List.copyOf(changed), logoError);
+    }
+
+    /**
+     * Writes the kernel to each of <code>kernelsDirs</code> on <code>executor</code>.
+     * @return for each directory, what was written or why it failed
+     */
+    public Map<Path, CompletableFuture<Written>> writeAll(Template template, List<Path> kernelsDirs, boolean force, Executor executor) {
+        var results = new LinkedHashMap<Path, CompletableFuture<Written>>();
+        for (Path kernelsDir : kernelsDirs) {
+            results.put(kernelsDir, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return write(template, kernelsDir, force);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        return results;
+    }
+
+    static List<String> jvmArguments(Kernels kernel) {
+        var jvmArgs = new ArrayList<String>();
+        if (kernel.modules().size() > 0) {
+            jvmArgs.add("--add-modules");
+            jvmArgs.add(String.join(",", kernel.modules()));
+        }
+        jvmArgs.add("-ea");
+        jvmArgs.addAll(kernel.jvmArguments());
+        return jvmArgs;
+    }
+
+    static String compilerOptions(String compilerOptions, boolean preview, String java) {
+        String defaultOptions = Objects.toString(compilerOptions, "");
+        if (preview) {
+            defaultOptions = defaultOptions + "--enable-preview --source " + java.replace("+", "");
+        }
+        return defaultOptions;
+    }
+
+    static String pinned(Map<String, String> pinnedVersions, String gav) {
+        return pinnedVersions.getOrDefault(gav, gav);
+    }
+
+    static String pinnedDeps(Map<String, String> pinnedVersions, String arg) {
+        var matcher = DEPS_MARKER.matcher(arg);
+        StringBuilder result = new StringBuilder();
+        while (matcher.find()) {
+            String deps = Arrays.stream(matcher.group(1).split(","))
+                    .map(gav -> pinned(pinnedVersions, gav.trim()))
+                    .collect(Collectors.joining(","));
+            matcher.appendReplacement(result, Matcher.quoteReplacement("%{deps:" + deps + "}"));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * What to generate. Unset values default to what the kernel prescribes, as with the installer's options.
+     */
+    public static final class Options {
+        final Kernels kernel;
+        final String name;
+        final String kernelDir;
+        final String postfix;
+        final String java;
+        final String scriptRef;
+        final boolean offline;
+        final boolean preview;
+        final boolean assertions;
+        final String compilerOptions;
+        final long timeout;
+        final Map<String, String> debug;
+        final List<String> jvmArguments;
+        final Map<String, String> env;
+        final Map<Path, String> resources;
+        final List<String> dependencies;
+        final Map<String, String> pinnedVersions;
+        final List<String> proxyArguments;
+
+        private Options(Builder builder) {
+            kernel = Arrays.stream(Kernels.values())
+                    .filter(candidate -> candidate.name().equalsIgnoreCase(builder.kernel))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown kernel '" + builder.kernel + "'. Possible values: " + new KernelCandidates()));
+            name = builder.name != null ? builder.name : kernel.displayName();
+            kernelDir = builder.kernelDir != null ? builder.kernelDir : kernel.name().toLowerCase();
+            postfix = builder.postfix;
+            java = builder.java != null ? builder.java : kernel.javaVersion();
+            scriptRef = builder.scriptRef != null ? builder.scriptRef : kernel.scriptRef();
+            offline = builder.offline;
+            preview = builder.preview;
+            assertions = builder.assertions;
+            compilerOptions = builder.compilerOptions;
+            timeout = builder.timeout;
+            debug = copy(builder.debug);
+            jvmArguments = List.copyOf(builder.jvmArguments);
+            env = copy(builder.env);
+            resources = copy(builder.resources);
+            var allDependencies = new ArrayList<String>(kernel.dependencies());
+            allDependencies.addAll(builder.dependencies);
+            dependencies = List.copyOf(allDependencies);
+            pinnedVersions = copy(builder.pinnedVersions);
+            proxyArguments = List.copyOf(builder.proxyArguments);
+        }
+
+        /** Keeps the order, so argv and resources come out the same way every time. */
+        private static <K, V> Map<K, V> copy(Map<K, V> map) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(map));
+        }
+
+        public static Builder builder(String kernel) {
+            return new Builder(kernel);
+        }
+
+        public static final class Builder {
+            private final String kernel;
+            private String name;
+            private String kernelDir;
+            private String postfix = "";
+            private String java;
+            private String scriptRef;
+            private boolean offline;
+            private boolean preview;
+            private boolean assertions = true;
+            private String compilerOptions = "";
+            private long timeout = -1;
+            private Map<String, String> debug = Map.of();
+            private List<String> jvmArguments = List.of();
+            private Map<String, String> env = Map.of();
+            private Map<Path, String> resources = Map.of();
+            private List<String> dependencies = List.of();
+            private Map<String, String> pinnedVersions = Map.of();
+            private List<String> proxyArguments = List.of();
+
+            private Builder(String kernel) {
+                this.kernel = kernel;
+            }
+
+            public Builder name(String name) { this.name = name; return this; }
+            public Builder kernelDir(String kernelDir) { this.kernelDir = kernelDir; return this; }
+            /** Appended to name and directory of the kernel, not of its proxy. */
+            public Builder postfix(String postfix) { this.postfix = postfix; return this; }
+            public Builder java(String java) { this.java = java; return this; }
+            public Builder scriptRef(String scriptRef) { this.scriptRef = scriptRef; return this; }
+            public Builder offline(boolean offline) { this.offline = offline; return this; }
+            public Builder preview(boolean preview) { this.preview = preview; return this; }
+            public Builder assertions(boolean assertions) { this.assertions = assertions; return this; }
+            public Builder compilerOptions(String compilerOptions) { this.compilerOptions = compilerOptions; return this; }
+            public Builder timeout(long timeout) { this.timeout = timeout; return this; }
+            public Builder debug(Map<String, String> debug) { this.debug = debug; return this; }
+            /** Passed to the kernel's jvm after the ones the kernel needs. */
+            public Builder jvmArguments(List<String> jvmArguments) { this.jvmArguments = jvmArguments; return this; }
+            /** Added to the environment the kernel prescribes. */
+            public Builder env(Map<String, String> env) { this.env = env; return this; }
+            /** Files written next to kernel.json, <code>{{KERNEL_DIR}}</code> is replaced in their content. */
+            public Builder resources(Map<Path, String> resources) { this.resources = resources; return this; }
+            /** Libraries, as gavs, jbang adds to the classpath after the ones the kernel prescribes. */
+            public Builder dependencies(List<String> dependencies) { this.dependencies = dependencies; return this; }
+            /** Versions to use for the script reference, the dependencies and <code>%{deps:...}</code> gavs, i.e. from <code>--pin</code>. */
+            public Builder pinnedVersions(Map<String, String> pinnedVersions) { this.pinnedVersions = pinnedVersions; return this; }
+            /** Passed to <code>ipc_proxy_kernel.py</code> after the kernel it proxies, i.e. its queue limits. */
+            public Builder proxyArguments(List<String> proxyArguments) { this.proxyArguments = proxyArguments; return this; }
+
+            public Options build() {
+                return new Options(this);
+            }
+        }
+    }
+
+    /**
+     * A kernel ready to be written to many directories. Its json is serialized once, resources that do not depend on
+     * the directory are encoded once and the logo is fetched once, when first written.
+     */
+    public static final class Template {
+        public final KernelJson json;
+        final String jsonText;
+        final Map<Path, byte[]> resources;
+        private final KernelSpecs specs;
+        private final URI logo;
+        private final boolean offline;
+        private Map<Integer, Path> logos;
+        private IOException logoError;
+
+        Template(KernelSpecs specs, KernelJson json, URI logo, boolean offline) {
+            this.specs = specs;
+            this.json = json;
+            this.jsonText = json.toJson();
+            this.logo = logo;
+            this.offline = offline;
+            var resources = new LinkedHashMap<Path, byte[]>();
+            json.resources.forEach((path, content) -> {
+                if (!content.contains("{{KERNEL_DIR}}")) {
+                    resources.put(path, content.getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            this.resources = Collections.unmodifiableMap(resources);
+        }
+
+        /**
+         * The kernel.json for <code>fullKernelDir</code>, the same the installer writes for it.
+         */
+        String json(Path fullKernelDir) {
+            String quoted = KernelJson.quote(fullKernelDir.toString());
+            return jsonText.replace("{{KERNEL_DIR}}", quoted.substring(1, quoted.length() - 1));
+        }
+
+        synchronized Map<Integer, Path> logos() throws IOException {
+            if (logo == null) {
+                return Map.of();
+            }
+            if (logos == null && logoError == null) {
+                try {
+                    logos = specs.assetCache.logos(logo, offline);
+                } catch (IOException e) {
+                    logoError = e;
+                }
+            }
+            if (logoError != null) {
+                throw logoError;
+            }
+            return logos;
+        }
+    }
+
+    /**
+     * The outcome of writing a kernel to one directory.
+     */
+    public static final class Written {
+        public final Path kernelJson;
+        /** False if a kernel was there already and not overwritten. */
+        public final boolean installed;
+        /** Files whose content changed, kernel.json first. */
+        public final List<Path> changed;
+        /** Why the logo is missing, the kernel works without it. */
+        public final IOException logoError;
+
+        Written(Path kernelJson, boolean installed, List<Path> changed, IOException logoError) {
+            this.kernelJson = kernelJson;
+            this.installed = installed;
+            this.changed = changed;
+            this.logoError = logoError;
+        }
+    }
+}
+
+public static class CdsArchive {
+    public final String file;
+    public final List<String> runtimeFlags;
+    public final List<String> trainingFlags;
+    public final List<String> createFlags;
+
+    public CdsArchive(String file, List<String> runtimeFlags, List<String> trainingFlags, List<String> createFlags) {
+        this.file = file;
+        this.runtimeFlags = runtimeFlags;
+        this.trainingFlags = trainingFlags;
+        this.createFlags = createFlags;
+    }
+}
+
+/**
+ * A throw-away connection file for launching a kernel outside of Jupyter.
+ */
+public static class ConnectionInfo {
+    public final String ip = "127.0.0.1";
+    public final String key = UUID.randomUUID().toString();
+    public final int shellPort;
+    public final int iopubPort;
+    public final int stdinPort;
+    public final int controlPort;
+    public final int hbPort;
+
+    ConnectionInfo(int shellPort, int iopubPort, int stdinPort, int controlPort, int hbPort) {
+        this.shellPort = shellPort;
+        this.iopubPort = iopubPort;
+        this.stdinPort = stdinPort;
+        this.controlPort = controlPort;
+        this.hbPort = hbPort;
+    }
+
+    static ConnectionInfo create() throws IOException {
+        int[] ports = new int[5];
+        var sockets = new ServerSocket[5];
+        try {
+            for (int i = 0; i < ports.length; i++) {
+                sockets[i] = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (var socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return new ConnectionInfo(ports[0], ports[1], ports[2], ports[3], ports[4]);
+    }
+
+    String toJson() {
+        return format("{\n  \"transport\": \"tcp\",\n  \"ip\": \"%s\",\n  \"key\": \"%s\",\n  \"signature_scheme\": \"hmac-sha256\",\n"
+                + "  \"shell_port\": %d,\n  \"iopub_port\": %d,\n  \"stdin_port\": %d,\n  \"control_port\": %d,\n  \"hb_port\": %d\n}\n",
+                ip, key, shellPort, iopubPort, stdinPort, controlPort, hbPort);
+    }
+
+    /**
+     * Polls the heartbeat port until the kernel accepts connections.
+     * @return false if the process died or the timeout passed first
+     */
+    boolean awaitListening(Process process, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (process.isAlive() && System.currentTimeMillis() < deadline) {
+            try (var socket = new Socket()) {
+                socket.connect(new InetSocketAddress(ip, hbPort), 200);
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+}
+
+@Command(name = "bench", mixinStandardHelpOptions = true,
+        description = "Measures how long an installed kernel takes from launch until it answers heartbeat and kernel_info_request", showDefaultValues=true)
+static class Bench implements Callable<Integer> {
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "Kernel to benchmark: a kernel directory name, i.e. 'jjava', or the path to a kernel.json")
+    String kernel;
+
+    @Option(names = {"-n", "--iterations"}, defaultValue = "5", description = "How many times to launch the kernel")
+    int iterations;
+
+    @Option(names = "--timeout", defaultValue = "300", description = "Seconds to wait for a launch to become ready")
+    long timeout;
+
+    @Option(names = "--json", description = "Print the result as JSON")
+    boolean json;
+
+    @Option(names = "--cell", description = "Code of the first cell to time. Defaults to a small computation in the kernel's language.")
+    String cell;
+
+    @Option(names = "--cold", description = "Start kernels installed with --crac the regular way instead of restoring their checkpoint, to compare with a cold start")
+    boolean cold;
+
+    @Option(names = "--think-time", defaultValue = "3000", description = "Milliseconds between the kernel being ready and the first cell, like a user would take. -1 skips the first cell.")
+    long thinkTime;
+
+    @Option(names = "--idle", description = "Instead of timing launches, run a cell that fills the heap and sample the kernel's resident set size while it is idle for this many seconds. "
+            + "Kernels installed with --idle-release are sampled with and without releasing memory.")
+    Long idle;
+
+    static final String JAVA_CELL = "var words = java.util.List.of(\"first\", \"cell\");\nwords.stream().map(String::toUpperCase).collect(java.util.stream.Collectors.joining(\" \"))";
+    static final String KOTLIN_CELL = "listOf(\"first\", \"cell\").map { it.uppercase() }.joinToString(\" \")";
+    /** Keep 256 MB reachable until the cell is done, so the heap grows and is garbage once the kernel is idle. */
+    static final String JAVA_ALLOCATING_CELL = "java.util.stream.IntStream.range(0, 256).mapToObj(i -> new byte[1 << 20]).collect(java.util.stream.Collectors.toList()).size()";
+    static final String KOTLIN_ALLOCATING_CELL = "(0 until 256).map { ByteArray(1 shl 20) }.size";
+
+    @Override
+    public Integer call() throws Exception {
+        Path kernelJson = findKernelJson();
+        JsonNode spec = objectMapper().readTree(kernelJson.toFile());
+        var argv = new ArrayList<String>();
+        spec.path("argv").forEach(arg -> argv.add(arg.asText()));
+        if (cold) {
+            argv.removeIf(arg -> arg.startsWith("-XX:CRaCRestoreFrom="));
+        }
+        var env = new LinkedHashMap<String, String>();
+        spec.path("env").fields().forEachRemaining(e -> env.put(e.getKey(), e.getValue().asText()));
+        boolean kotlin = "kotlin".equals(spec.path("language").asText(""));
+        if (idle != null) {
+            return idle(kernelJson, argv, env, cell != null ? cell : kotlin ? KOTLIN_ALLOCATING_CELL : JAVA_ALLOCATING_CELL);
+        }
+
+        long[] heartbeat = new long[iterations];
+        long[] ready = new long[iterations];
+        long[] rss = new long[iterations];
+        long[] firstCell = new long[iterations];
+        String code = cell != null ? cell : kotlin ? KOTLIN_CELL : JAVA_CELL;
+        for (int i = 0; i < iterations; i++) {
+            Path work = Files.createTempDirectory("kernel-bench");
+            try {
+                var connection = ipcproxybench.Connection.create("tcp", work);
+                Path connectionFile = work.resolve("connection.json");
+                write(connectionFile, connection.toJson().getBytes(StandardCharsets.UTF_8));
+
+                long start = System.nanoTime();
+                Process process = start(argv, env, connectionFile, parent.verbose);
+                try {
+                    var launch = CompletableFuture.supplyAsync(() -> {
+                        try (var client = new ipcproxybench.Client(connection)) {
+                            client.hb.write(List.of(ByteBuffer.allocate(0), ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII))));
+                            client.hb.read();
+                            long hb = System.nanoTime() - start;
+                            client.shell.write(client.message("kernel_info_request", "{}"));
+                            client.shell.read();
+                            long info = System.nanoTime() - start;
+                            long memory = residentSetSize(process.toHandle());
+                            long first = -1;
+                            if (thinkTime >= 0) {
+                                Thread.sleep(thinkTime);
+                                long sent = System.nanoTime();
+                                client.shell.write(client.message("execute_request", "{\"code\": " + ipcproxykernel.Json.quote(code)
+                                        + ", \"silent\": false, \"store_history\": true, \"user_expressions\": {}, \"allow_stdin\": false, \"stop_on_error\": true}"));
+                                client.shell.read();
+                                first = System.nanoTime() - sent;
+                            }
+                            client.control.write(client.message("shutdown_request", "{\"restart\": false}"));
+                            client.control.read();
+                            return new long[] {hb, info, memory, first};
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+                    long[] measured = launch.get(timeout, TimeUnit.SECONDS);
+                    heartbeat[i] = measured[0];
+                    ready[i] = measured[1];
+                    rss[i] = measured[2];
+                    firstCell[i] = measured[3];
+                    if (!json) {
+                        out.println(format("launch %d: heartbeat %d ms, kernel_info_reply %d ms, rss %d MB%s", i + 1,
+                                heartbeat[i] / 1_000_000, ready[i] / 1_000_000, rss[i] / (1024 * 1024),
+                                thinkTime >= 0 ? format(", first cell %d ms", firstCell[i] / 1_000_000) : ""));
+                    }
+                } finally {
+                    stop(process);
+                }
+            } finally {
+                deleteRecursively(work);
+            }
+        }
+
+        Arrays.sort(heartbeat);
+        Arrays.sort(ready);
+        Arrays.sort(rss);
+        Arrays.sort(firstCell);
+        if (json) {
+            out.println(format("{\n  \"kernel\": \"%s\",\n  \"iterations\": %d,\n  \"heartbeat_ms\": %s,\n  \"kernel_info_reply_ms\": %s,\n  \"rss_mb\": %s%s\n}",
+                    kernelJson.getParent().getFileName(), iterations, stats(heartbeat, 1_000_000), stats(ready, 1_000_000), stats(rss, 1024 * 1024),
+                    thinkTime >= 0 ? ",\n  \"first_cell_ms\": " + stats(firstCell, 1_000_000) : ""));
+        } else {
+            out.println(format("\n%-20s %8s %8s %8s", "", "min", "median", "p95"));
+            out.println(format("%-20s %8d %8d %8d", "heartbeat ms", heartbeat[0] / 1_000_000, median(heartbeat) / 1_000_000, p95(heartbeat) / 1_000_000));
+            out.println(format("%-20s %8d %8d %8d", "kernel_info ms", ready[0] / 1_000_000, median(ready) / 1_000_000, p95(ready) / 1_000_000));
+            out.println(format("%-20s %8d %8d %8d", "rss MB", rss[0] / (1024 * 1024), median(rss) / (1024 * 1024), p95(rss) / (1024 * 1024)));
+            if (thinkTime >= 0) {
+                out.println(format("%-20s %8d %8d %8d", "first cell ms", firstCell[0] / 1_000_000, median(firstCell) / 1_000_000, p95(firstCell) / 1_000_000));
+            }
+        }
+        return 0;
+    }
+
+    Path findKernelJson() {
+        return parent.findKernelJson(kernel);
+    }
+
+    static Process start(List<String> argv, Map<String, String> env, Path connectionFile, boolean verbose) throws IOException {
+        var builder = new ProcessBuilder(argv.stream().map(arg -> arg.replace(CONNECTION_FILE_MARKER, connectionFile.toString())).collect(Collectors.toList()))
+                .redirectErrorStream(true)
+                .redirectOutput(verbose ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD);
+        builder.environment().putAll(env);
+        return builder.start();
+    }
+
+    /**
+     * Waits for a kernel that was asked to shut down, terminates it and what it started if it does not,
+     * and {@link #kill(Process) kills} them if they do not terminate either.
+     */
+    static void stop(Process process) throws InterruptedException {
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.descendants().forEach(ProcessHandle::destroy);
+            process.destroy();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                kill(process);
+            }
+        }
+    }
+
+    /**
+     * Kills a kernel and what it started, i.e. the jvm jbang launched, without asking it to shut down first, and waits
+     * until they are gone, so they neither compete for the cpu nor hold on to files any more.
+     */
+    static void kill(Process process) throws InterruptedException {
+        var processes = new ArrayList<ProcessHandle>();
+        process.descendants().forEach(processes::add);
+        processes.add(process.toHandle());
+        processes.forEach(ProcessHandle::destroyForcibly);
+        for (ProcessHandle handle : processes) {
+            try {
+                handle.onExit().get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // gone or beyond our reach, either way not waited for
+            }
+        }
+    }
+
+    /**
+     * Samples the resident set size of a kernel left idle after a cell that filled its heap. Kernels installed with
+     * <code>--idle-release</code> are also run without their agent, to compare.
+     */
+    int idle(Path kernelJson, List<String> argv, Map<String, String> env, String code) throws Exception {
+        var variants = new LinkedHashMap<String, List<String>>();
+        if (argv.stream().anyMatch(arg -> arg.contains("/kernelidle.jar="))) {
+            variants.put("release", argv);
+            variants.put("keep", argv.stream().filter(arg -> !arg.contains("/kernelidle.jar=")).collect(Collectors.toList()));
+        } else {
+            variants.put("keep", argv);
+        }
+        long interval = Math.max(1, idle / 20);
+        var samples = new LinkedHashMap<String, List<Long>>();
+        for (var variant : variants.entrySet()) {
+            if (!json) {
+                out.println(format("Sampling %s for %d s with %s memory", kernelJson.getParent().getFileName(), idle, variant.getKey().equals("keep") ? "kept" : "released"));
+            }
+            samples.put(variant.getKey(), sampleIdle(variant.getValue(), env, code, interval));
+        }
+
+        int count = samples.values().stream().mapToInt(List::size).min().orElse(0);
+        if (json) {
+            out.println(format("{\n  \"kernel\": \"%s\",\n  \"interval_s\": %d,\n  \"rss_mb\": {%s}\n}", kernelJson.getParent().getFileName(), interval,
+                    samples.entrySet().stream().map(e -> format("\"%s\": %s", e.getKey(),
+                            e.getValue().stream().map(rss -> String.valueOf(rss / (1024 * 1024))).collect(Collectors.joining(", ", "[", "]"))))
+                            .collect(Collectors.joining(", "))));
+        } else {
+            var header = new StringBuilder(format("\n%-10s", "idle s"));
+            samples.keySet().forEach(name -> header.append(format(" %12s", name + " MB")));
+            out.println(header);
+            for (int i = 0; i < count; i++) {
+                var row = new StringBuilder(format("%-10d", i * interval));
+                for (List<Long> rss : samples.values()) {
+                    row.append(format(" %12d", rss.get(i) / (1024 * 1024)));
+                }
+                out.println(row);
+            }
+        }
+        return 0;
+    }
+
+    List<Long> sampleIdle(List<String> argv, Map<String, String> env, String code, long interval) throws Exception {
+        Path work = Files.createTempDirectory("kernel-bench");
+        try {
+            var connection = ipcproxybench.Connection.create("tcp", work);
+            Path connectionFile = work.resolve("connection.json");
+            write(connectionFile, connection.toJson().getBytes(StandardCharsets.UTF_8));
+            Process process = start(argv, env, connectionFile, parent.verbose);
+            try (var client = new ipcproxybench.Client(connection)) {
+                client.shell.write(client.message("kernel_info_request", "{}"));
+                client.shell.read();
+                client.shell.write(client.message("execute_request", "{\"code\": " + ipcproxykernel.Json.quote(code)
+                        + ", \"silent\": false, \"store_history\": true, \"user_expressions\": {}, \"allow_stdin\": false, \"stop_on_error\": true}"));
+                client.shell.read();
+
+                var samples = new ArrayList<Long>();
+                for (long elapsed = 0; elapsed <= idle; elapsed += interval) {
+                    samples.add(residentSetSize(process.toHandle()));
+                    if (elapsed + interval <= idle) {
+                        Thread.sleep(interval * 1000);
+                    }
+                }
+                client.control.write(client.message("shutdown_request", "{\"restart\": false}"));
+                client.control.read();
+                return samples;
+            } finally {
+                stop(process);
+            }
+        } finally {
+            deleteRecursively(work);
+        }
+    }
+
+    static long median(long[] sorted) {
+        return sorted[(sorted.length - 1) / 2];
+    }
+
+    static long p95(long[] sorted) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(0.95 * sorted.length) - 1)];
+    }
+
+    static String stats(long[] sorted, long unit) {
+        return format("{\"min\": %d, \"median\": %d, \"p95\": %d}", sorted[0] / unit, median(sorted) / unit, p95(sorted) / unit);
+    }
+
+    /**
+     * Sums VmRSS of the launched process and everything it started, i.e. jbang and the kernel jvm.
+     * A process that exits while it is read, like a short lived jbang helper, no longer counts.
+     * @return -1 where /proc is not available
+     */
+    static long residentSetSize(ProcessHandle process) {
+        if (!Files.isReadable(Path.of("/proc/self/status"))) {
+            return -1;
+        }
+        var processes = new ArrayList<ProcessHandle>();
+        processes.add(process);
+        process.descendants().forEach(processes::add);
+        long total = 0;
+        for (ProcessHandle handle : processes) {
+            Path status = Path.of("/proc", String.valueOf(handle.pid()), "status");
+            try {
+                for (String line : Files.readAllLines(status)) {
+                    if (line.startsWith("VmRSS:")) {
+                        total += Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                if (handle.isAlive()) {
+                    return -1;
+                }
+                // exited since descendants() listed it
+            }
+        }
+        return total;
+    }
+}
+
+/**
+ * Content addressed store for logos, so repeated installs do not download or rescale anything.
+ * Blobs are stored by the sha-256 of their content, downloaded urls and scaled logo variants point to blobs,
+ * and blobs nothing points to are pruned.
+ */
+static class AssetCache {
+    static final List<Integer> LOGO_SIZES = List.of(32, 64);
+
+    final Path root;
+
+    AssetCache(Path root) {
+        this.root = root;
+    }
+
+    static Path defaultRoot() {
+        return Path.of(System.getProperty("user.home"), ".cache", "jupyter-java", "assets");
+    }
+
+    Path blob(String hash) {
+        return root.resolve("blobs").resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Stores content unless an intact blob with the same hash exists. Blobs are made read-only where the file system
+     * has posix permissions, as kernel directories hard link logos to them.
+     * @return path of the blob
+     */
+    Path put(byte[] content) throws IOException {
+        String hash = sha256(content);
+        Path blob = blob(hash);
+        if (!intact(blob)) {
+            writeAtomically(blob, content);
+            readOnly(blob);
+        }
+        return blob;
+    }
+
+    /**
+     * Whether the blob exists and still has the content its name is the hash of, i.e. was not changed through a link.
+     */
+    static boolean intact(Path blob) throws IOException {
+        return exists(blob) && sha256(Files.readAllBytes(blob)).equals(blob.getFileName().toString());
+    }
+
+    static void readOnly(Path file) throws IOException {
+        var view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(PosixFilePermissions.fromString("r--r--r--"));
+        }
+    }
+
+    /**
+     * Deletes blobs no url or scaled logo entry refers to, i.e. the resources earlier versions stored here.
+     * Blobs written within the last hour are kept, another install may be about to refer to them.
+     * @return how many blobs were deleted
+     */
+    int prune() throws IOException {
+        Path blobs = root.resolve("blobs");
+        if (!exists(blobs)) {
+            return 0;
+        }
+        var referenced = new HashSet<String>();
+        for (String entries : List.of("urls", "scaled")) {
+            if (exists(root.resolve(entries))) {
+                try (var files = Files.list(root.resolve(entries))) {
+                    for (Path entry : files.collect(Collectors.toList())) {
+                        referenced.add(Files.readString(entry).trim());
+                        if (entries.equals("scaled")) {
+                            referenced.add(entry.getFileName().toString().replaceAll("-\\d+$", ""));
+                        }
+                    }
+                }
+            }
+        }
+        Instant recent = Instant.now().minus(Duration.ofHours(1));
+        int pruned = 0;
+        try (var files = Files.walk(blobs, 2)) {
+            for (Path blob : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                if (!referenced.contains(blob.getFileName().toString()) && Files.getLastModifiedTime(blob).toInstant().isBefore(recent)) {
+                    Files.deleteIfExists(blob);
+                    pruned++;
+                }
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * The logo scaled to each of {@link #LOGO_SIZES}, downloading and scaling it only if not cached yet.
+     */
+    Map<Integer, Path> logos(URI uri, boolean offline) throws IOException {
+        Path urlEntry = root.resolve("urls").resolve(installkernel.sha256(uri.toString()));
+        String original;
+        if (exists(urlEntry) && intact(blob(Files.readString(urlEntry).trim()))) {
+            original = Files.readString(urlEntry).trim();
+        } else if (offline) {
+            throw new IOException(uri + " is not in the asset cache " + root + " and network access is disabled");
+        } else {
+            try (InputStream in = uri.toURL().openStream()) {
+                original = put(in.readAllBytes()).getFileName().toString();
+            }
+            writeAtomically(urlEntry, original.getBytes(StandardCharsets.US_ASCII));
+        }
+        return scaled(original);
+    }
+
+    Map<Integer, Path> scaled(String original) throws IOException {
+        var result = new LinkedHashMap<Integer, Path>();
+        for (int size : LOGO_SIZES) {
+            Path scaledEntry = root.resolve("scaled").resolve(original + "-" + size);
+            if (!exists(scaledEntry) || !intact(blob(Files.readString(scaledEntry).trim()))) {
+                // only here AWT gets loaded
+                Path blob = put(LogoScaler.scale(Files.readAllBytes(blob(original)), size));
+                writeAtomically(scaledEntry, blob.getFileName().toString().getBytes(StandardCharsets.US_ASCII));
+            }
+            result.put(size, blob(Files.readString(scaledEntry).trim()));
+        }
+        return result;
+    }
+
+    /**
+     * Adds a file to the cache as the content of <code>uri</code>, i.e. to install on nodes without network access.
+     */
+    void seed(URI uri, Path file) throws IOException {
+        String hash = put(Files.readAllBytes(file)).getFileName().toString();
+        writeAtomically(root.resolve("urls").resolve(installkernel.sha256(uri.toString())), hash.getBytes(StandardCharsets.US_ASCII));
+        scaled(hash);
+    }
+
+    /**
+     * Hard links a cached blob to <code>target</code>, copying if the file system does not allow it.
+     * The link is made next to the target and renamed over it, so a reader never sees a partial file.
+     * Only for logos: editing a linked file in place would change the blob and every kernel linked to it,
+     * which {@link #readOnly(Path) read-only} blobs prevent where they can and {@link #intact(Path)} detects.
+     * Files meant to be edited, like the kernel's resources, are written with {@link #writeIfChanged(Path, byte[])}.
+     * @return false if the target already had the same content
+     */
+    static boolean link(Path blob, Path target) throws IOException {
+        if (exists(target) && Files.size(blob) == Files.size(target) && Arrays.equals(Files.readAllBytes(blob), Files.readAllBytes(target))) {
+            return false;
+        }
+        if (!exists(target.getParent())) {
+            createDirectories(target.getParent());
+        }
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try {
+                Files.createLink(temp, blob);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(blob, temp);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a file of its own, also replacing a hard link to a blob that earlier versions made for resources.
+     * @return false if the target already had the same content
+     */
+    static boolean writeIfChanged(Path target, byte[] content) throws IOException {
+        if (exists(target) && !hardLinked(target) && Arrays.equals(Files.readAllBytes(target), content)) {
+            return false;
+        }
+        writeAtomically(target, content);
+        return true;
+    }
+
+    static boolean hardLinked(Path file) {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink")).intValue() > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static void writeAtomically(Path target, byte[] content) throws IOException {
+        if (!exists(target.getParent())) {
+            createDirectories(target.getParent());
+        }
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            write(temp, content);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+/**
+ * Kept apart from {@link AssetCache} so AWT classes are only loaded when a logo really needs scaling.
+ */
+static class LogoScaler {
+    static byte[] scale(byte[] image, int size) throws IOException {
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(image));
+        if (original == null) {
+            throw new IOException("Not a supported image format");
+        }
+        var scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        var graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(original, 0, 0, size, size, null);
+        graphics.dispose();
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, "PNG", out);
+        return out.toByteArray();
+    }
+}
+
+@Command(name = "seed-assets", mixinStandardHelpOptions = true,
+        description = "Seeds the asset cache from a directory, so kernels can be installed without network access", showDefaultValues=true)
+static class SeedAssets implements Callable<Integer> {
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "Directory with logo files named like the last path segment of the kernel logo urls, i.e. jbang_icon.png")
+    Path directory;
+
+    @Override
+    public Integer call() throws Exception {
+        AssetCache cache = parent.assetCache();
+        int seeded = 0;
+        for (Kernels k : Kernels.values()) {
+            if (k.logo() == null) {
+                continue;
+            }
+            String path = k.logo().getPath();
+            Path file = directory.resolve(path.substring(path.lastIndexOf('/') + 1));
+            if (exists(file)) {
+                cache.seed(k.logo(), file);
+                out.println("Seeded " + k.logo() + " from " + file);
+                seeded++;
+            } else {
+                parent.verbose("No " + file.getFileName() + " in " + directory + " for " + k.displayName());
+            }
+        }
+        out.println(format("Seeded %d logo(s) into %s", seeded, cache.root));
+        parent.pruneAssetCache();
+        return 0;
+    }
+}
+
+/**
+ * Reconciles installed kernels with a manifest. Only files whose content changed are written, each through
+ * a temp file and rename, and kernels an earlier sync installed that are no longer in the manifest are removed.
+ * <pre>
+ * jupyter_kernel_dir: /usr/local/share/jupyter/kernels   # optional
+ * options: ["--profile=dense"]                            # applied to every kernel
+ * kernels:
+ *   - jjava
+ *   - kernel: rapaio
+ *     options: ["--launch=direct", "--name=Rapaio"]
+ * </pre>
+ */
+@Command(name = "sync", mixinStandardHelpOptions = true,
+        description = "Installs the kernels in a JSON or YAML manifest, writing only what changed and removing kernels dropped from it", showDefaultValues=true)
+static class Sync implements Callable<Integer> {
+
+    static final String MARKER = ".install-kernel-sync";
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "The manifest, YAML if it ends in .yaml or .yml, JSON otherwise")
+    Path manifest;
+
+    @Option(names = "--prune", defaultValue = "true", negatable = true, description = "Whether to remove kernels installed by an earlier sync that are no longer in the manifest")
+    boolean prune;
+
+    @Override
+    public Integer call() throws Exception {
+        String fileName = manifest.getFileName().toString();
+        ObjectMapper reader = fileName.endsWith(".yaml") || fileName.endsWith(".yml") ? new ObjectMapper(new YAMLFactory()) : objectMapper();
+        JsonNode spec = reader.readTree(manifest.toFile());
+
+        var common = new ArrayList<String>();
+        spec.path("options").forEach(option -> common.add(option.asText()));
+        String kernelsDir = parent.jupyterKernelDir != null ? parent.jupyterKernelDir : spec.path("jupyter_kernel_dir").asText(null);
+
+        // where kernels dropped from the manifest are looked for, also when it has no kernels left
+        installkernel defaults = new installkernel();
+        new CommandLine(defaults).setCaseInsensitiveEnumValuesAllowed(true).parseArgs(common.toArray(new String[0]));
+        if (kernelsDir != null) {
+            defaults.jupyterKernelDir = kernelsDir;
+        }
+        String prunePath = defaults.prepare().get(0);
+        Path owner = manifest.toAbsolutePath().normalize();
+
+        var desired = new ArrayList<String>();
+        for (JsonNode entry : spec.path("kernels")) {
+            var args = new ArrayList<String>(common);
+            if (entry.isTextual()) {
+                args.add(0, entry.asText());
+            } else {
+                args.add(0, entry.path("kernel").asText());
+                entry.path("options").forEach(option -> args.add(option.asText()));
+            }
+
+            installkernel installer = new installkernel();
+            new CommandLine(installer).setCaseInsensitiveEnumValuesAllowed(true).parseArgs(args.toArray(new String[0]));
+            installer.force = true;
+            installer.verbose |= parent.verbose;
+            if (kernelsDir != null) {
+                installer.jupyterKernelDir = kernelsDir;
+            }
+            String installationPath = installer.prepare().get(0);
+            if (installer.kernels().size() > 1) {
+                throw new IllegalArgumentException("Each manifest entry installs one kernel: " + entry);
+            }
+            installer.kernel = installer.kernels().get(0);
+            installer.install(installationPath, installer.postfix);
+            for (String dir : installer.writtenKernelDirs) {
+                AssetCache.writeIfChanged(Path.of(installationPath, dir, MARKER), owner.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            desired.addAll(installer.writtenKernelDirs);
+            out.println(format("%-24s %d file(s) changed", installer.name(), installer.changedFiles));
+        }
+
+        if (prune) {
+            try (var dirs = Files.list(Path.of(prunePath))) {
+                for (Path dir : dirs.collect(Collectors.toList())) {
+                    if (ownedBy(dir, owner) && !desired.contains(dir.getFileName().toString())) {
+                        out.println("Removing " + dir + ", it is no longer in " + manifest);
+                        try (var files = Files.walk(dir)) {
+                            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                                Files.delete(file);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Whether a sync of <code>manifest</code> installed the kernel in <code>dir</code>, rather than one of another manifest
+     * sharing the kernels directory, or the user.
+     */
+    static boolean ownedBy(Path dir, Path manifest) throws IOException {
+        Path marker = dir.resolve(MARKER);
+        if (!Files.isRegularFile(marker)) {
+            return false;
+        }
+        try {
+            return Path.of(Files.readString(marker).trim()).toAbsolutePath().normalize().equals(manifest);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+}
+
+@Command(name = "jfr-summary", mixinStandardHelpOptions = true,
+        description = "Summarizes the Flight Recorder recordings of a kernel installed with --jfr, one section per session", showDefaultValues=true)
+static class JfrSummary implements Callable<Integer> {
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "Kernel to summarize: a kernel directory name, i.e. 'jjava', a kernel directory or a .jfr file")
+    String kernel;
+
+    @Option(names = "--sessions", defaultValue = "5", description = "How many of the most recent sessions to summarize")
+    int sessions;
+
+    @Option(names = "--top", defaultValue = "5", description = "How many entries to list per section")
+    int top;
+
+    @Option(names = "--keep", description = "Delete all but this many of the most recent recordings")
+    Integer keep;
+
+    @Override
+    public Integer call() throws Exception {
+        List<Path> recordings;
+        if (kernel.endsWith(".jfr") && Files.isRegularFile(Path.of(kernel))) {
+            recordings = List.of(Path.of(kernel));
+        } else {
+            Path dir = parent.findKernelJson(kernel).getParent().resolve("jfr");
+            if (!exists(dir)) {
+                throw new IllegalArgumentException("No recordings in " + dir + ". Install the kernel with --jfr=light or --jfr=profile.");
+            }
+            try (var files = Files.list(dir)) {
+                recordings = files.filter(file -> file.toString().endsWith(".jfr"))
+                        .sorted(Comparator.comparing((Path file) -> file.toFile().lastModified()).reversed())
+                        .collect(Collectors.toList());
+            }
+            if (keep != null) {
+                for (Path old : recordings.subList(Math.min(keep, recordings.size()), recordings.size())) {
+                    parent.verbose("Deleting " + old);
+                    Files.delete(old);
+                }
+                recordings = recordings.subList(0, Math.min(keep, recordings.size()));
+            }
+        }
+
+        for (Path recording : recordings.subList(0, Math.min(sessions, recordings.size()))) {
+            summarize(recording);
+        }
+        if (recordings.isEmpty()) {
+            out.println("No recordings yet. They are written when a kernel session ends.");
+        }
+        return 0;
+    }
+
+    void summarize(Path recording) throws IOException {
+        var pauses = new ArrayList<RecordedEvent>();
+        var allocations = new LinkedHashMap<String, Long>();
+        var samples = new LinkedHashMap<String, Long>();
+        var blocked = new LinkedHashMap<String, Long>();
+        long compilations = 0;
+        long compileNanos = 0;
+        long compileTotalMillis = -1;
+        Instant first = null;
+        Instant last = null;
+
+        try (var file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                var event = file.readEvent();
+                if (first == null || event.getStartTime().isBefore(first)) {
+                    first = event.getStartTime();
+                }
+                if (last == null || event.getEndTime().isAfter(last)) {
+                    last = event.getEndTime();
+                }
+                switch (event.getEventType().getName()) {
+                    case "jdk.GarbageCollection":
+                        pauses.add(event);
+                        break;
+                    case "jdk.ObjectAllocationSample":
+                        allocations.merge(frame(event), event.getLong("weight"), Long::sum);
+                        break;
+                    case "jdk.ObjectAllocationInNewTLAB":
+                        allocations.merge(frame(event), event.getLong("tlabSize"), Long::sum);
+                        break;
+                    case "jdk.ObjectAllocationOutsideTLAB":
+                        allocations.merge(frame(event), event.getLong("allocationSize"), Long::sum);
+                        break;
+                    case "jdk.Compilation":
+                        compilations++;
+                        compileNanos += event.getDuration().toNanos();
+                        break;
+                    case "jdk.CompilerStatistics":
+                        compileTotalMillis = Math.max(compileTotalMillis, event.getLong("totalTimeSpent"));
+                        break;
+                    case "jdk.ExecutionSample":
+                        samples.merge(threadName(event.getThread("sampledThread")), 1L, Long::sum);
+                        break;
+                    case "jdk.JavaMonitorEnter":
+                    case "jdk.JavaMonitorWait":
+                    case "jdk.ThreadPark":
+                        blocked.merge(threadName(event.getThread()), event.getDuration().toNanos(), Long::sum);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        out.println(format("\n%s (%s, %d s)", recording.getFileName(), first, first == null ? 0 : Duration.between(first, last).toSeconds()));
+
+        // a collection's duration includes its concurrent phases, only its pauses stop the kernel
+        out.println("  Longest GC pauses");
+        pauses.sort(Comparator.comparing((RecordedEvent pause) -> pause.getDuration("longestPause")).reversed());
+        for (var pause : pauses.subList(0, Math.min(top, pauses.size()))) {
+            out.println(format("    %8.1f ms  %s (%s), %.1f ms paused in all", pause.getDuration("longestPause").toNanos() / 1e6,
+                    pause.getString("name"), pause.getString("cause"), pause.getDuration("sumOfPauses").toNanos() / 1e6));
+        }
+        if (pauses.isEmpty()) {
+            out.println("    none recorded");
+        } else {
+            out.println(format("    %8.1f ms paused in %d collections", pauses.stream().mapToLong(pause -> pause.getDuration("sumOfPauses").toNanos()).sum() / 1e6, pauses.size()));
+        }
+
+        out.println("  Allocation hot spots");
+        printTop(allocations, value -> format("%8d MB", value / (1024 * 1024)));
+
+        out.println("  Compilation");
+        if (compileTotalMillis >= 0) {
+            out.println(format("    %8d ms in total", compileTotalMillis));
+        }
+        out.println(format("    %8d ms in %d compilations above the recording threshold", compileNanos / 1_000_000, compilations));
+
+        out.println("  Busiest threads (execution samples)");
+        printTop(samples, value -> format("%8d   ", value));
+
+        out.println("  Most blocked threads");
+        printTop(blocked, value -> format("%8d ms", value / 1_000_000));
+    }
+
+    void printTop(Map<String, Long> values, LongFunction<String> formatter) {
+        if (values.isEmpty()) {
+            out.println("    none recorded");
+        }
+        values.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(entry -> out.println(format("    %s  %s", formatter.apply(entry.getValue()), entry.getKey())));
+    }
+
+    /**
+     * The first frame outside the jdk, so allocations are attributed to kernel or user code where possible.
+     */
+    static String frame(RecordedEvent event) {
+        var stackTrace = event.getStackTrace();
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "<unknown>";
+        }
+        var frames = stackTrace.getFrames();
+        var frame = frames.stream()
+                .filter(f -> f.getMethod() != null && !f.getMethod().getType().getName().matches("(java|javax|jdk|sun|com\\.sun)\\..*"))
+                .findFirst().orElse(frames.get(0));
+        if (frame.getMethod() == null) {
+            return "<unknown>";
+        }
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + (frame.getLineNumber() > 0 ? ":" + frame.getLineNumber() : "");
+    }
+
+    static String threadName(RecordedThread thread) {
+        if (thread == null) {
+            return "<unknown>";
+        }
+        return thread.getJavaName() != null ? thread.getJavaName() : thread.getOSName();
+    }
+}
+
+@Command(name = "startup-summary", mixinStandardHelpOptions = true,
+        description = "Summarizes the startup traces of kernels installed with --trace-startup into percentiles per phase", showDefaultValues=true)
+static class StartupSummary implements Callable<Integer> {
+    /** Record fields of the phases, in the order they happen, and how they are reported. */
+    static final Map<String, String> PHASES = new LinkedHashMap<>();
+    static {
+        PHASES.put("launcher_ms", "launcher (resolving jdk and jars)");
+        PHASES.put("boot_ms", "jvm boot to main");
+        PHASES.put("init_ms", "main to shell bound");
+        PHASES.put("ready_ms", "shell bound to kernel_info reply");
+        PHASES.put("total_ms", "total");
+    }
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(arity = "1..*", description = "Kernels to summarize: kernel directory names, i.e. 'jjava', kernel directories, startup.jsonl files, "
+            + "or directories searched for startup.jsonl files, i.e. where traces of many nodes or users were collected")
+    List<String> kernels;
+
+    @Option(names = "--since", description = "Only launches in the last so many hours")
+    Long sinceHours;
+
+    @Option(names = "--json", description = "Print one JSON object per kernel instead of a table")
+    boolean json;
+
+    @Override
+    public Integer call() throws Exception {
+        var traces = new LinkedHashMap<String, List<Path>>();
+        for (String kernel : kernels) {
+            Path path = Path.of(kernel);
+            if (Files.isRegularFile(path)) {
+                traces.put(kernel, List.of(path));
+            } else if (Files.isDirectory(path) && !exists(path.resolve("kernel.json"))) {
+                try (var files = Files.walk(path)) {
+                    traces.put(kernel, files.filter(file -> file.getFileName().toString().matches("startup\\.jsonl(\\.1)?"))
+                            .sorted().collect(Collectors.toList()));
+                }
+            } else {
+                Path dir = parent.findKernelJson(kernel).getParent();
+                traces.put(kernel, List.of(dir.resolve("startup.jsonl.1"), dir.resolve("startup.jsonl")));
+            }
+        }
+
+        Instant since = sinceHours == null ? Instant.EPOCH : Instant.now().minus(Duration.ofHours(sinceHours));
+        var all = new ArrayList<JsonNode>();
+        for (var entry : traces.entrySet()) {
+            var records = read(entry.getValue(), since);
+            all.addAll(records);
+            summarize(entry.getKey(), records);
+        }
+        if (traces.size() > 1) {
+            summarize("all", all);
+        }
+        return 0;
+    }
+
+    List<JsonNode> read(List<Path> files, Instant since) throws IOException {
+        var records = new ArrayList<JsonNode>();
+        for (Path file : files) {
+            if (!exists(file)) {
+                continue;
+            }
+            for (String line : Files.readAllLines(file)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    JsonNode record = objectMapper().readTree(line);
+                    if (!Instant.parse(record.path("timestamp").asText()).isBefore(since)) {
+                        records.add(record);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    parent.verbose("Skipping malformed record in " + file + ": " + line);
+                }
+            }
+        }
+        return records;
+    }
+
+    void summarize(String kernel, List<JsonNode> records) {
+        long pooled = records.stream().filter(record -> record.path("pooled").asBoolean()).count();
+        long cds = records.stream().filter(record -> record.path("cds").asBoolean()).count();
+        long fetchedJars = records.stream().filter(record -> record.path("fetched_jars").asInt() > 0).count();
+        long fetchedJdk = records.stream().filter(record -> record.path("jdk_fetched").asBoolean()).count();
+        long notReady = records.stream().filter(record -> record.path("ready").asLong(-1) < 0).count();
+        var jdks = records.stream().collect(Collectors.groupingBy(record -> record.path("java_version").asText("?"), TreeMap::new, Collectors.counting()));
+
+        if (json) {
+            var result = new StringBuilder(format("{\"kernel\": %s, \"launches\": %d, \"pooled\": %d, \"cds\": %d, \"fetched_jars\": %d, \"fetched_jdk\": %d, \"not_ready\": %d",
+                    KernelJson.quote(kernel), records.size(), pooled, cds, fetchedJars, fetchedJdk, notReady));
+            PHASES.keySet().forEach(phase -> {
+                long[] sorted = values(records, phase);
+                if (sorted.length > 0) {
+                    result.append(format(", \"%s\": {\"n\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}",
+                            phase, sorted.length, percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]));
+                }
+            });
+            out.println(result.append("}"));
+            return;
+        }
+
+        out.println(format("\n%s: %d launches, %d pooled, %d with class data sharing, %d fetched jars, %d fetched the jdk, %d never got ready",
+                kernel, records.size(), pooled, cds, fetchedJars, fetchedJdk, notReady));
+        if (records.isEmpty()) {
+            out.println("  No launches traced. Install the kernel with --trace-startup.");
+            return;
+        }
+        out.println("  jdks: " + jdks.entrySet().stream().map(jdk -> jdk.getKey() + " (" + jdk.getValue() + ")").collect(Collectors.joining(", ")));
+        out.println(format("  %-36s %6s %8s %8s %8s %8s", "phase", "n", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        PHASES.forEach((phase, description) -> {
+            long[] sorted = values(records, phase);
+            if (sorted.length == 0) {
+                out.println(format("  %-36s %6d", description, 0));
+            } else {
+                out.println(format("  %-36s %6d %8d %8d %8d %8d", description, sorted.length,
+                        percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]));
+            }
+        });
+    }
+
+    /**
+     * The phase's durations, sorted, leaving out launches that did not get through it.
+     */
+    static long[] values(List<JsonNode> records, String phase) {
+        return records.stream().mapToLong(record -> record.path(phase).asLong(-1)).filter(value -> value >= 0).sorted().toArray();
+    }
+
+    /**
+     * Nearest rank percentile, like {@link Bench#p95(long[])}.
+     */
+    static long percentile(long[] sorted, int percent) {
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(percent / 100.0 * sorted.length) - 1))];
+    }
+}
+
+/**
+ * Runs the same cells on several kernels, like a user working through a notebook, to compare kernels and to catch
+ * regressions when a kernel's version is bumped. Every cell of the corpus runs once per round in one session per
+ * kernel. The first run includes compiling the cell and loading what it uses, later runs are its steady state.
+ */
+@Command(name = "bench-cells", mixinStandardHelpOptions = true,
+        description = "Runs a fixed corpus of cells on installed kernels and compares first and steady state latency, iopub throughput and memory growth", showDefaultValues=true)
+static class BenchCells implements Callable<Integer> {
+
+    /** A cell of the corpus, in Java and in Kotlin. */
+    static final class Cell {
+        final String name;
+        final String java;
+        final String kotlin;
+
+        Cell(String name, String java, String kotlin) {
+            this.name = name;
+            this.java = java;
+            this.kotlin = kotlin;
+        }
+    }
+
+    static final List<Cell> CORPUS = List.of(
+            new Cell("numeric-loop",
+                    String.join("\n",
+                            "double harmonicRoots(int n) {",
+                            "    double sum = 0;",
+                            "    for (int i = 1; i <= n; i++) {",
+                            "        sum += Math.sqrt(i) / i;",
+                            "    }",
+                            "    return sum;",
+                            "}",
+                            "harmonicRoots(20_000_000)"),
+                    String.join("\n",
+                            "fun harmonicRoots(n: Int): Double {",
+                            "    var sum = 0.0",
+                            "    for (i in 1..n) sum += Math.sqrt(i.toDouble()) / i",
+                            "    return sum",
+                            "}",
+                            "harmonicRoots(20_000_000)")),
+            new Cell("collections",
+                    String.join("\n",
+                            "var words = new java.util.ArrayList<String>();",
+                            "for (int i = 0; i < 200_000; i++) {",
+                            "    words.add(Integer.toString(i * 7919 % 200_000, 36));",
+                            "}",
+                            "java.util.Collections.sort(words);",
+                            "words.stream().collect(java.util.stream.Collectors.groupingBy(w -> w.charAt(0), java.util.TreeMap::new, java.util.stream.Collectors.counting())).size()"),
+                    String.join("\n",
+                            "val words = (0 until 200_000).map { (it * 7919 % 200_000).toString(36) }.sorted()",
+                            "words.groupingBy { it[0] }.eachCount().toSortedMap().size")),
+            new Cell("stream-output",
+                    String.join("\n",
+                            "for (int i = 0; i < 10_000; i++) {",
+                            "    System.out.println(\"line \" + i + \" \" + \"abcdefghij\".repeat(10));",
+                            "}"),
+                    "for (i in 0 until 10_000) println(\"line $i \" + \"abcdefghij\".repeat(10))"),
+            new Cell("large-result",
+                    "\"0123456789\".repeat(100_000)",
+                    "\"0123456789\".repeat(100_000)"),
+            new Cell("image",
+                    String.join("\n",
+                            "var image = new java.awt.image.BufferedImage(800, 600, java.awt.image.BufferedImage.TYPE_INT_RGB);",
+                            "var graphics = image.createGraphics();",
+                            "for (int i = 0; i < 200; i++) {",
+                            "    graphics.setColor(new java.awt.Color(i * 1_000_003 & 0xFFFFFF));",
+                            "    graphics.fillOval(i * 37 % 800, i * 53 % 600, 80, 80);",
+                            "}",
+                            "graphics.dispose();",
+                            "image"),
+                    String.join("\n",
+                            "val image = java.awt.image.BufferedImage(800, 600, java.awt.image.BufferedImage.TYPE_INT_RGB)",
+                            "val graphics = image.createGraphics()",
+                            "for (i in 0 until 200) {",
+                            "    graphics.color = java.awt.Color(i * 1_000_003 and 0xFFFFFF)",
+                            "    graphics.fillOval(i * 37 % 800, i * 53 % 600, 80, 80)",
+                            "}",
+                            "graphics.dispose()",
+                            "image")));
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(arity = "0..*", description = "Kernels to compare: kernel directory names, i.e. 'jjava', or paths to a kernel.json. Defaults to the kernels of this catalog that are installed.")
+    List<String> kernels = new ArrayList<>();
+
+    @Option(names = {"-n", "--rounds"}, defaultValue = "10", description = "How many times each kernel runs the corpus. Runs after the first are the steady state.")
+    int rounds;
+
+    @Option(names = "--timeout", defaultValue = "1800", description = "Seconds a kernel may take to start and run all rounds")
+    long timeout;
+
+    @Option(names = "--json", description = "Print the report as JSON, i.e. to keep as a baseline")
+    boolean json;
+
+    @Option(names = "--baseline", description = "A JSON report of an earlier run. Cells whose steady state p50 got slower by more than --threshold are reported and fail the command.")
+    Path baseline;
+
+    @Option(names = "--threshold", defaultValue = "20", description = "Percent a cell may get slower than in the baseline")
+    int threshold;
+
+    /** What a kernel did with one run of a cell. */
+    static final class Run {
+        long nanos;
+        long iopubBytes;
+        /** From the first output to idle, what output throughput is measured over. */
+        long outputNanos;
+        final Set<String> outputs = new TreeSet<>();
+        boolean failed;
+    }
+
+    /** An iopub message and when it was read. */
+    static final class Published {
+        final long nanos = System.nanoTime();
+        final List<ByteBuffer> frames;
+
+        Published(List<ByteBuffer> frames) {
+            this.frames = frames;
+        }
+    }
+
+    static final class Result {
+        final String kernel;
+        String implementation = "?";
+        /** From launch until the kernel answered kernel_info_request. */
+        long readyNanos;
+        final Map<String, List<Run>> runs = new LinkedHashMap<>();
+        final List<Long> rss = new ArrayList<>();
+        /** Why the kernel did not run the corpus, i.e. it ran out of time. */
+        String error;
+
+        Result(String kernel) {
+            this.kernel = kernel;
+        }
+
+        long first(String cell) {
+            return runs.get(cell).get(0).nanos;
+        }
+
+        /** How long one run of the whole corpus took. */
+        long round(int round) {
+            return runs.values().stream().mapToLong(cellRuns -> cellRuns.get(round).nanos).sum();
+        }
+
+        String failedCells() {
+            return runs.entrySet().stream().filter(e -> e.getValue().stream().anyMatch(run -> run.failed)).map(Map.Entry::getKey).collect(Collectors.joining(", "));
+        }
+
+        /** Runs after the first, sorted, empty with a single round. */
+        long[] steady(String cell) {
+            var cellRuns = runs.get(cell);
+            return cellRuns.subList(1, cellRuns.size()).stream().mapToLong(run -> run.nanos).sorted().toArray();
+        }
+
+        long iopubBytes(String cell) {
+            return runs.get(cell).stream().mapToLong(run -> run.iopubBytes).sum() / runs.get(cell).size();
+        }
+
+        double megabytesPerSecond(String cell) {
+            long bytes = runs.get(cell).stream().mapToLong(run -> run.iopubBytes).sum();
+            long nanos = runs.get(cell).stream().mapToLong(run -> run.outputNanos).sum();
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1024 * 1024);
+        }
+
+        String outputs(String cell) {
+            var cellRuns = runs.get(cell);
+            if (cellRuns.stream().anyMatch(run -> run.failed)) {
+                return "error";
+            }
+            return String.join(" ", cellRuns.get(0).outputs);
+        }
+
+        /** Resident set size growth per round after the first, which includes loading and compiling everything once. */
+        long growthPerRound() {
+            return rss.size() < 2 ? 0 : (rss.get(rss.size() - 1) - rss.get(0)) / (rss.size() - 1);
+        }
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        var kernelJsons = new LinkedHashMap<String, Path>();
+        if (kernels.isEmpty()) {
+            for (Kernels kernel : Kernels.values()) {
+                try {
+                    kernelJsons.put(kernel.name().toLowerCase(), parent.findKernelJson(kernel.name().toLowerCase()));
+                } catch (IllegalArgumentException e) {
+                    parent.verbose(kernel.displayName() + " is not installed");
+                }
+            }
+            if (kernelJsons.isEmpty()) {
+                throw new IllegalArgumentException("None of the kernels of this catalog are installed.");
+            }
+        } else {
+            for (String kernel : kernels) {
+                Path kernelJson = parent.findKernelJson(kernel);
+                kernelJsons.put(kernelJson.getParent().getFileName().toString(), kernelJson);
+            }
+        }
+
+        var results = new ArrayList<Result>();
+        for (var kernelJson : kernelJsons.entrySet()) {
+            if (!json) {
+                out.println(format("Running %d rounds of %d cells on %s", rounds, CORPUS.size(), kernelJson.getKey()));
+            }
+            try {
+                results.add(run(kernelJson.getKey(), kernelJson.getValue(), rounds, timeout, parent.verbose));
+            } catch (TimeoutException e) {
+                var result = new Result(kernelJson.getKey());
+                result.error = e.getMessage();
+                results.add(result);
+                System.err.println(kernelJson.getKey() + ": " + e.getMessage());
+            }
+        }
+
+        if (json) {
+            printJson(results);
+        } else {
+            print(results);
+        }
+        boolean failed = results.stream().anyMatch(result -> result.error != null);
+        return baseline != null && regressions(results) > 0 || failed ? 1 : 0;
+    }
+
+    /**
+     * Launches a kernel and runs the corpus on it, <code>rounds</code> times in one session.
+     * @throws TimeoutException when that took more than <code>timeoutSeconds</code>, the kernel is killed then
+     */
+    static Result run(String name, Path kernelJson, int rounds, long timeoutSeconds, boolean verbose) throws Exception {
+        JsonNode spec = objectMapper().readTree(kernelJson.toFile());
+        var argv = new ArrayList<String>();
+        spec.path("argv").forEach(arg -> argv.add(arg.asText()));
+        var env = new LinkedHashMap<String, String>();
+        spec.path("env").fields().forEachRemaining(e -> env.put(e.getKey(), e.getValue().asText()));
+        boolean kotlin = "kotlin".equals(spec.path("language").asText(""));
+
+        var result = new Result(name);
+        Path work = Files.createTempDirectory("kernel-bench");
+        try {
+            var connection = ipcproxybench.Connection.create("tcp", work);
+            Path connectionFile = work.resolve("connection.json");
+            write(connectionFile, connection.toJson().getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            Process process = Bench.start(argv, env, connectionFile, verbose);
+            var deadline = new Deadline(process, timeoutSeconds);
+            try (deadline; var client = connect(connection, process)) {
+                var published = new LinkedBlockingQueue<Published>();
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (true) {
+                            published.add(new Published(client.iopub.read()));
+                        }
+                    } catch (IOException e) {
+                        // closed with the session
+                    }
+                }, "bench-iopub");
+                reader.setDaemon(true);
+                reader.start();
+
+                // pub/sub drops what is published before the subscription made it through, kernel_info makes the kernel publish a status
+                JsonNode info;
+                do {
+                    client.shell.write(client.message("kernel_info_request", "{}"));
+                    info = part(client.shell.read(), 5);
+                    result.readyNanos = result.readyNanos > 0 ? result.readyNanos : System.nanoTime() - start;
+                } while (published.poll(200, TimeUnit.MILLISECONDS) == null);
+                result.implementation = info.path("implementation").asText("?") + " " + info.path("implementation_version").asText("");
+                Thread.sleep(200);
+                published.clear();
+
+                for (int round = 0; round < rounds; round++) {
+                    for (Cell cell : CORPUS) {
+                        result.runs.computeIfAbsent(cell.name, key -> new ArrayList<>()).add(execute(client, published, kotlin ? cell.kotlin : cell.java));
+                    }
+                    result.rss.add(Bench.residentSetSize(process.toHandle()));
+                }
+
+                client.control.write(client.message("shutdown_request", "{\"restart\": false}"));
+                client.control.read();
+            } catch (Exception e) {
+                if (deadline.expired) {
+                    throw new TimeoutException(format("Kernel did not run %d rounds of the corpus within %d s and was killed", rounds, timeoutSeconds));
+                }
+                throw e;
+            } finally {
+                Bench.stop(process);
+            }
+        } finally {
+            deleteRecursively(work);
+        }
+        return result;
+    }
+
+    /**
+     * Connects to a launched kernel, failing as soon as it exits rather than when connecting gives up.
+     */
+    static ipcproxybench.Client connect(ipcproxybench.Connection connection, Process process) throws Exception {
+        var connecting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new ipcproxybench.Client(connection);
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        });
+        CompletableFuture.anyOf(connecting, process.onExit()).get();
+        if (!connecting.isDone()) {
+            throw new IllegalStateException(format("Kernel exited with code %d before it accepted connections", process.exitValue()));
+        }
+        return connecting.get();
+    }
+
+    /**
+     * Kills a kernel, and what it started, that is still busy when its time is up, and interrupts the thread that waits
+     * for it. Closing it in time keeps the kernel running and clears an interrupt that came too late to matter.
+     */
+    static final class Deadline implements AutoCloseable {
+        final Thread runner = Thread.currentThread();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicBoolean decided = new AtomicBoolean();
+        final Thread watchdog;
+        volatile boolean expired;
+
+        Deadline(Process process, long seconds) {
+            watchdog = new Thread(() -> {
+                try {
+                    if (!closed.await(seconds, TimeUnit.SECONDS) && decided.compareAndSet(false, true)) {
+                        expired = true;
+                        Bench.kill(process);
+                        runner.interrupt();
+                    }
+                } catch (InterruptedException e) {
+                    // not started as part of anything that is interrupted
+                }
+            }, "bench-deadline");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+        @Override
+        public void close() {
+            decided.compareAndSet(false, true);
+            closed.countDown();
+            boolean interrupted = false;
+            while (watchdog.isAlive()) {
+                try {
+                    watchdog.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (expired) {
+                Thread.interrupted();
+            } else if (interrupted) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends a cell and reads iopub until the kernel is idle again, like a frontend waiting for a cell to finish.
+     */
+    static Run execute(ipcproxybench.Client client, LinkedBlockingQueue<Published> published, String code) throws Exception {
+        var run = new Run();
+        List<ByteBuffer> request = client.message("execute_request", "{\"code\": " + ipcproxykernel.Json.quote(code)
+                + ", \"silent\": false, \"store_history\": true, \"user_expressions\": {}, \"allow_stdin\": false, \"stop_on_error\": false}");
+        String msgId = part(request, 2).path("msg_id").asText();
+        long start = System.nanoTime();
+        client.shell.write(request);
+        long firstOutput = -1;
+        while (true) {
+            Published message = published.take();
+            if (!msgId.equals(part(message.frames, 3).path("msg_id").asText())) {
+                continue;
+            }
+            String msgType = part(message.frames, 2).path("msg_type").asText();
+            if (msgType.equals("status")) {
+                if (part(message.frames, 5).path("execution_state").asText().equals("idle")) {
+                    run.outputNanos = firstOutput < 0 ? 0 : message.nanos - firstOutput;
+                    break;
+                }
+                continue;
+            }
+            if (msgType.equals("execute_input")) {
+                continue;
+            }
+            firstOutput = firstOutput < 0 ? message.nanos : firstOutput;
+            for (ByteBuffer frame : message.frames) {
+                run.iopubBytes += frame.remaining();
+            }
+            run.failed |= msgType.equals("error");
+            run.outputs.add(msgType.equals("display_data") || msgType.equals("execute_result")
+                    ? msgType + (text(message.frames, 5).contains("\"image/png\"") ? " image/png" : "")
+                    : msgType);
+        }
+        run.failed |= !part(client.shell.read(), 5).path("status").asText().equals("ok");
+        run.nanos = System.nanoTime() - start;
+        return run;
+    }
+
+    /**
+     * A part of a Jupyter message, counted from its delimiter: 1 is the signature, 2 the header, 3 the parent header, 4 metadata and 5 content.
+     */
+    static JsonNode part(List<ByteBuffer> frames, int index) throws IOException {
+        return objectMapper().readTree(text(frames, index));
+    }
+
+    static String text(List<ByteBuffer> frames, int index) {
+        for (int i = 0; i < frames.size(); i++) {
+            if (StandardCharsets.UTF_8.decode(frames.get(i).duplicate()).toString().equals(ipcproxybench.DELIMITER)) {
+                return StandardCharsets.UTF_8.decode(frames.get(i + index).duplicate()).toString();
+            }
+        }
+        throw new IllegalArgumentException("Not a Jupyter message");
+    }
+
+    void print(List<Result> results) {
+        out.println();
+        results.forEach(result -> out.println(result.error != null ? format("%-14s failed: %s", result.kernel, result.error)
+                : format("%-14s %s, ready in %d ms, rss %d MB after the first round, %+d KB per round after",
+                        result.kernel, result.implementation, result.readyNanos / 1_000_000, result.rss.get(0) / (1024 * 1024), result.growthPerRound() / 1024)));
+        var finished = results.stream().filter(result -> result.error == null).collect(Collectors.toList());
+        if (finished.isEmpty()) {
+            return;
+        }
+        out.println(format("\n%-14s %-14s %9s %9s %9s %10s %8s  %s", "cell", "kernel", "first ms", "p50 ms", "p90 ms", "iopub KB", "MB/s", "outputs"));
+        for (Cell cell : CORPUS) {
+            String label = cell.name;
+            for (Result result : finished) {
+                long[] steady = result.steady(cell.name);
+                out.println(format("%-14s %-14s %9d %9s %9s %10d %8.1f  %s", label, result.kernel, result.first(cell.name) / 1_000_000,
+                        steady.length == 0 ? "-" : String.valueOf(StartupSummary.percentile(steady, 50) / 1_000_000),
+                        steady.length == 0 ? "-" : String.valueOf(StartupSummary.percentile(steady, 90) / 1_000_000),
+                        result.iopubBytes(cell.name) / 1024, result.megabytesPerSecond(cell.name), result.outputs(cell.name)));
+                label = "";
+            }
+        }
+    }
+
+    void printJson(List<Result> results) {
+        out.println(results.stream().map(result -> {
+            if (result.error != null) {
+                return format("    %s: {\n      \"error\": %s\n    }", KernelJson.quote(result.kernel), KernelJson.quote(result.error));
+            }
+            String cells = CORPUS.stream().map(cell -> {
+                long[] steady = result.steady(cell.name);
+                return format("      %s: {\"first_ms\": %.1f, \"p50_ms\": %.1f, \"p90_ms\": %.1f, \"iopub_bytes\": %d, \"mb_per_s\": %.2f, \"outputs\": %s}",
+                        KernelJson.quote(cell.name), result.first(cell.name) / 1e6,
+                        steady.length == 0 ? -1.0 : StartupSummary.percentile(steady, 50) / 1e6,
+                        steady.length == 0 ? -1.0 : StartupSummary.percentile(steady, 90) / 1e6,
+                        result.iopubBytes(cell.name), result.megabytesPerSecond(cell.name), KernelJson.quote(result.outputs(cell.name)));
+            }).collect(Collectors.joining(",\n"));
+            return format("    %s: {\n      \"implementation\": %s,\n      \"ready_ms\": %d,\n      \"rss_mb\": [%s],\n      \"cells\": {\n%s\n      }\n    }",
+                    KernelJson.quote(result.kernel), KernelJson.quote(result.implementation), result.readyNanos / 1_000_000,
+                    result.rss.stream().map(rss -> String.valueOf(rss / (1024 * 1024))).collect(Collectors.joining(", ")),
+                    cells.replace("\n      ", "\n        ").replaceFirst("^      ", "        "));
+        }).collect(Collectors.joining(",\n", "{\n  \"rounds\": " + rounds + ",\n  \"kernels\": {\n", "\n  }\n}")));
+    }
+
+    /**
+     * Compares steady state p50 latencies with the baseline's, for the kernels and cells in both.
+     * @return how many cells got slower than the threshold allows
+     */
+    int regressions(List<Result> results) throws IOException {
+        JsonNode before = objectMapper().readTree(baseline.toFile()).path("kernels");
+        int regressions = 0;
+        for (Result result : results) {
+            if (result.error != null) {
+                continue;
+            }
+            JsonNode kernel = before.path(result.kernel);
+            for (Cell cell : CORPUS) {
+                double was = kernel.path("cells").path(cell.name).path("p50_ms").asDouble(-1.0);
+                long[] steady = result.steady(cell.name);
+                if (was <= 0 || steady.length == 0) {
+                    continue;
+                }
+                double is = StartupSummary.percentile(steady, 50) / 1e6;
+                if (is > was * (1 + threshold / 100.0)) {
+                    regressions++;
+                    System.err.println(format("%s %s: %.1f ms, was %.1f ms with %s (%+.0f%%)", result.kernel, cell.name, is, was,
+                            kernel.path("implementation").asText("?"), (is / was - 1) * 100));
+                }
+            }
+        }
+        if (regressions > 0) {
+            System.err.println(format("%d cells more than %d%% slower than in %s", regressions, threshold, baseline));
+        } else if (!json) {
+            out.println(format("\nNo cell more than %d%% slower than in %s", threshold, baseline));
+        }
+        return regressions;
+    }
+}
+
+/**
+ * A kernel bundle is a zip with the kernel directory in <code>kernel/</code>, the jars of its classpath in
+ * <code>jars/&lt;sha256&gt;.jar</code> and optionally its jdk in <code>runtime/</code>. Absolute paths in
+ * kernel.json and the argfiles are replaced by <code>{{KERNEL_DIR}}</code>, <code>{{BUNDLE_CACHE}}</code> and
+ * <code>{{BUNDLE_JAVA}}</code>, which import fills in again. <code>bundle.properties</code> records the Java
+ * version the kernel ran on, its argfiles hold jvm options for that version, so a bundle without a jdk is
+ * imported onto a jdk of the same version.
+ *
+ * Import unpacks jars and runtimes into a cache with the same content addressed layout, <code>jars/</code>
+ * and <code>runtimes/&lt;id&gt;/</code>. Nothing is written to it when everything is there already, so
+ * a cache populated once can be shared read-only by many nodes.
+ */
+@Command(name = "export", mixinStandardHelpOptions = true,
+        description = "Exports an installed kernel with its jars, and optionally its jdk, into a bundle that can be imported without network access", showDefaultValues=true)
+static class Export implements Callable<Integer> {
+    static final List<String> TEXT_FILES = List.of("kernel.json", "kernel.args", "pool.args", "pool.properties", "crac.args");
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "Kernel to export: a kernel directory name, i.e. 'jjava', or a kernel directory. It must be installed with --launch=direct.")
+    String kernel;
+
+    @Option(names = {"-o", "--output"}, description = "Bundle to write, <kernel>.zip by default")
+    Path output;
+
+    @Option(names = "--include-jdk", defaultValue = "false", description = "Also bundle the jdk or jlink runtime the kernel runs on")
+    boolean includeJdk;
+
+    @Override
+    public Integer call() throws Exception {
+        Path kernelDir = parent.findKernelJson(kernel).getParent().toAbsolutePath();
+        Path bundle = output != null ? output : Path.of(kernelDir.getFileName() + ".zip");
+
+        var texts = new LinkedHashMap<String, String>();
+        for (String name : TEXT_FILES) {
+            if (exists(kernelDir.resolve(name))) {
+                texts.put(name, Files.readString(kernelDir.resolve(name)));
+            }
+        }
+        if (!texts.containsKey("kernel.args")) {
+            throw new IllegalArgumentException(kernelDir + " is launched through jbang and has no resolved classpath. Install it with --launch=direct to export it.");
+        }
+
+        // whole arguments and classpath elements, unquoted, so paths are found whatever the platform's separators
+        var jars = new TreeMap<String, Path>();
+        var javaHomes = new TreeSet<String>();
+        for (var text : texts.entrySet()) {
+            rewrite(text.getKey(), text.getValue(), arg -> {
+                for (String element : arg.split(Pattern.quote(File.pathSeparator))) {
+                    Path path = absolutePath(element);
+                    if (path == null || path.startsWith(kernelDir) || path.getParent() == null) {
+                        continue;
+                    }
+                    if (path.getFileName().toString().matches("java(\\.exe)?") && path.getParent().getFileName() != null
+                            && path.getParent().getFileName().toString().equals("bin") && path.getParent().getParent() != null) {
+                        javaHomes.add(path.getParent().getParent().toString());
+                    } else if (element.endsWith(".jar") && Files.isRegularFile(path)) {
+                        jars.put(element, path);
+                    }
+                }
+                return arg;
+            });
+        }
+
+        var replacements = new LinkedHashMap<String, String>();
+        try (var zip = new ZipOutputStream(Files.newOutputStream(bundle))) {
+            for (var jar : jars.entrySet()) {
+                byte[] content = Files.readAllBytes(jar.getValue());
+                String name = "jars/" + AssetCache.sha256(content) + ".jar";
+                replacements.put(jar.getKey(), "{{BUNDLE_CACHE}}/" + name);
+                put(zip, name, content);
+            }
+            String runtime = "";
+            String javaVersion = "";
+            if (!javaHomes.isEmpty()) {
+                // the kernel's jdk, every other java on the argv (i.e. the one running the pool client) is replaced by it
+                String kernelJava = texts.containsKey("pool.properties") ? javaHomeOf("pool.properties", texts.get("pool.properties"), javaHomes) : javaHomeOf("kernel.json", texts.get("kernel.json"), javaHomes);
+                String version = jdkVersion(Path.of(kernelJava));
+                if (version != null) {
+                    javaVersion = String.valueOf(jdkFeature(version));
+                }
+                if (includeJdk) {
+                    runtime = sha256(kernelJava, exists(Path.of(kernelJava, "release")) ? Files.readString(Path.of(kernelJava, "release")) : "").substring(0, 16);
+                    putTree(zip, Path.of(kernelJava), "runtime/");
+                }
+                for (String home : javaHomes) {
+                    replacements.put(home, "{{BUNDLE_JAVA}}");
+                }
+            }
+            replacements.put(kernelDir.toString(), "{{KERNEL_DIR}}");
+
+            try (var files = Files.walk(kernelDir)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    String relative = kernelDir.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (relative.startsWith("jfr/") || relative.startsWith("metrics/") || relative.startsWith("cds-")
+                            || relative.startsWith("crac/") || relative.equals("crac.log") || relative.equals("pool.log") || relative.startsWith("startup.jsonl") || relative.equals("idle.jsonl") || relative.equals(Sync.MARKER)) {
+                        continue; // session data and archives tied to this node's paths
+                    }
+                    if (texts.containsKey(relative)) {
+                        put(zip, "kernel/" + relative, rewrite(relative, texts.get(relative), arg -> replaceAll(arg, replacements)).getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        put(zip, "kernel/" + relative, Files.readAllBytes(file));
+                    }
+                }
+            }
+
+            var manifest = new StringBuilder();
+            manifest.append("format=1\n");
+            manifest.append("kernel=").append(kernelDir.getFileName()).append('\n');
+            manifest.append("runtime=").append(runtime).append('\n');
+            manifest.append("java=").append(javaVersion).append('\n');
+            put(zip, "bundle.properties", manifest.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        out.println(format("Exported %s with %d jars%s to %s (%d MB)", kernelDir.getFileName(), jars.size(), includeJdk && !javaHomes.isEmpty() ? " and its jdk" : "",
+                bundle, Files.size(bundle) / (1024 * 1024)));
+        return 0;
+    }
+
+    /**
+     * Applies <code>value</code> to each string of kernel.json, argument of an argfile or value of pool.properties and
+     * writes the file again the way the installer does, so paths are replaced unescaped and come out quoted for the file.
+     */
+    static String rewrite(String name, String text, UnaryOperator<String> value) throws IOException {
+        if (name.equals("kernel.json")) {
+            JsonNode spec = objectMapper().readTree(text);
+            var argv = new ArrayList<String>();
+            spec.path("argv").forEach(arg -> argv.add(value.apply(arg.asText())));
+            Map<String, String> env = null;
+            if (spec.has("env")) {
+                env = new LinkedHashMap<>();
+                for (var field : (Iterable<Map.Entry<String, JsonNode>>) () -> spec.path("env").fields()) {
+                    env.put(field.getKey(), value.apply(field.getValue().asText()));
+                }
+            }
+            return new KernelJson(argv, spec.path("display_name").asText(null), spec.path("language").asText(null),
+                    spec.path("interrupt_mode").asText(null), env, null, Map.of()).toJson();
+        } else if (name.endsWith(".properties")) {
+            var properties = new Properties();
+            properties.load(new StringReader(text));
+            return new TreeMap<>(properties).entrySet().stream()
+                    .map(e -> e.getKey() + "=" + propertiesEscape(value.apply((String) e.getValue())))
+                    .collect(Collectors.joining("\n", "", "\n"));
+        } else {
+            return argfileSplit(text).stream().map(value).map(installkernel::argfileQuote).collect(Collectors.joining("\n", "", "\n"));
+        }
+    }
+
+    /** <code>arg</code> as an absolute path, or null where it is none, i.e. an option or a relative path. */
+    static Path absolutePath(String arg) {
+        try {
+            Path path = Path.of(arg);
+            return path.isAbsolute() ? path.normalize() : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /** The first of <code>javaHomes</code> a file runs java from, in the order of its arguments. */
+    static String javaHomeOf(String name, String text, Set<String> javaHomes) throws IOException {
+        var found = new ArrayList<String>();
+        rewrite(name, text, arg -> {
+            javaHomes.stream().filter(home -> arg.startsWith(home + File.separator)).forEach(found::add);
+            return arg;
+        });
+        return found.isEmpty() ? javaHomes.iterator().next() : found.get(0);
+    }
+
+    static String replaceAll(String text, Map<String, String> replacements) {
+        // longest first, so a jar inside the java home is not cut in half
+        var keys = new ArrayList<>(replacements.keySet());
+        keys.sort(Comparator.comparing(String::length).reversed());
+        for (String key : keys) {
+            text = text.replace(key, replacements.get(key));
+        }
+        return text;
+    }
+
+    static void put(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    static void putTree(ZipOutputStream zip, Path root, String prefix) throws IOException {
+        try (var files = Files.walk(root)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                zip.putNextEntry(new ZipEntry(prefix + root.relativize(file).toString().replace(File.separatorChar, '/')));
+                Files.copy(file, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+}
+
+@Command(name = "import", mixinStandardHelpOptions = true,
+        description = "Installs a kernel from a bundle made by export, without network access", showDefaultValues=true)
+static class Import implements Callable<Integer> {
+
+    @ParentCommand
+    installkernel parent;
+
+    @Parameters(description = "Bundle to import")
+    Path bundle;
+
+    @Option(names = "--cache", description = "Where jars and runtimes are unpacked to, content addressed. Can be a read-only mount populated once with --cache-only. Defaults to 'bundles' next to the asset cache.")
+    Path cache;
+
+    @Option(names = "--cache-only", defaultValue = "false", description = "Only populate the cache, i.e. on the node that writes to a shared cache")
+    boolean cacheOnly;
+
+    @Option(names = "--java-home", description = "Jdk to run the kernel with when the bundle has none. Defaults to an installed jdk of the Java version the kernel was exported with.")
+    Path javaHome;
+
+    @Override
+    public Integer call() throws Exception {
+        Path cacheDir = (cache != null ? cache : parent.assetCache().root.resolveSibling("bundles")).toAbsolutePath();
+        var manifest = new Properties();
+        var texts = new LinkedHashMap<String, byte[]>();
+        var files = new LinkedHashMap<String, byte[]>();
+        int unpacked = 0;
+        String runtime;
+
+        try (var zip = new ZipFile(bundle.toFile())) {
+            try (var in = zip.getInputStream(zip.getEntry("bundle.properties"))) {
+                manifest.load(in);
+            }
+            runtime = manifest.getProperty("runtime", "");
+            Path runtimeDir = runtime.isEmpty() ? null : inside(cacheDir.resolve("runtimes"), runtime);
+            boolean unpackRuntime = !runtime.isEmpty() && !exists(runtimeDir);
+            Path staging = unpackRuntime ? cacheDir.resolve("runtimes").resolve(".staging-" + UUID.randomUUID()) : null;
+
+            try {
+                for (var entry : Collections.list(zip.entries())) {
+                    String name = entry.getName();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    if (name.startsWith("jars/")) {
+                        Path jar = inside(cacheDir.resolve("jars"), name.substring("jars/".length()));
+                        if (!exists(jar)) {
+                            byte[] content;
+                            try (var in = zip.getInputStream(entry)) {
+                                content = in.readAllBytes();
+                            }
+                            if (!name.equals("jars/" + AssetCache.sha256(content) + ".jar")) {
+                                throw new IOException(name + " in " + bundle + " is corrupt");
+                            }
+                            AssetCache.writeAtomically(jar, content);
+                            unpacked++;
+                        }
+                    } else if (name.startsWith("runtime/") && unpackRuntime) {
+                        Path file = inside(staging, name.substring("runtime/".length()));
+                        createDirectories(file.getParent());
+                        try (var in = zip.getInputStream(entry)) {
+                            Files.copy(in, file);
+                        }
+                        String relative = name.substring("runtime/".length());
+                        if (relative.startsWith("bin/") || relative.equals("lib/jspawnhelper") || relative.equals("lib/jexec")) {
+                            file.toFile().setExecutable(true);
+                        }
+                        unpacked++;
+                    } else if (name.startsWith("kernel/")) {
+                        String relative = name.substring("kernel/".length());
+                        // checked before anything is written, the kernel directory is only known once installed
+                        inside(Path.of("kernel").toAbsolutePath(), relative);
+                        try (var in = zip.getInputStream(entry)) {
+                            (Export.TEXT_FILES.contains(relative) ? texts : files).put(relative, in.readAllBytes());
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (staging != null && exists(staging)) {
+                    deleteRecursively(staging);
+                }
+                throw e;
+            }
+            if (unpackRuntime) {
+                try {
+                    Files.move(staging, runtimeDir, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    if (!exists(runtimeDir)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        out.println(format("%d file(s) unpacked to %s", unpacked, cacheDir));
+        if (cacheOnly) {
+            return 0;
+        }
+
+        String java = !runtime.isEmpty() ? cacheDir.resolve("runtimes").resolve(runtime).toString() : javaHome(manifest.getProperty("kernel"), manifest.getProperty("java", "")).toString();
+        List<String> installationPath = parent.prepare();
+        Path kernelDir = inside(Path.of(installationPath.get(0)).toAbsolutePath(), manifest.getProperty("kernel", ""));
+        if (exists(kernelDir.resolve("kernel.json")) && !parent.force) {
+            out.println("A kernel already installed to " + kernelDir + ". Use --force to overwrite.");
+            return 1;
+        }
+        for (var file : files.entrySet()) {
+            AssetCache.writeIfChanged(inside(kernelDir, file.getKey()), file.getValue());
+        }
+        for (var text : texts.entrySet()) {
+            String content = Export.rewrite(text.getKey(), new String(text.getValue(), StandardCharsets.UTF_8), arg -> arg
+                    .replace("{{KERNEL_DIR}}", kernelDir.toString())
+                    .replace("{{BUNDLE_CACHE}}", cacheDir.toString())
+                    .replace("{{BUNDLE_JAVA}}", java));
+            AssetCache.writeIfChanged(kernelDir.resolve(text.getKey()), content.getBytes(StandardCharsets.UTF_8));
+        }
+        out.println(manifest.getProperty("kernel") + " kernel imported to " + kernelDir);
+        return 0;
+    }
+
+    /**
+     * The jdk to run a kernel exported without one on: <code>--java-home</code>, or the installed jdk of the version
+     * in the bundle, found like <code>--autotune</code> finds them. Bundles of earlier versions do not record a version,
+     * they run on the jdk running the installer.
+     */
+    Path javaHome(String kernel, String javaVersion) throws IOException {
+        if (javaVersion.isEmpty()) {
+            return (javaHome != null ? javaHome : Path.of(System.getProperty("java.home"))).toAbsolutePath();
+        }
+        if (javaHome != null) {
+            String version = jdkVersion(javaHome);
+            if (version == null || !allowsJava(javaVersion, jdkFeature(version))) {
+                throw new IllegalArgumentException(format("%s in %s was exported running on Java %s, but --java-home %s is %s.",
+                        kernel, bundle, javaVersion, javaHome, version == null ? "not a jdk" : "Java " + version));
+            }
+            return javaHome.toAbsolutePath();
+        }
+        return installedJdks().entrySet().stream()
+                .filter(jdk -> allowsJava(javaVersion, jdk.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(format("%s in %s was exported running on Java %s and has no jdk. "
+                        + "Install one with 'jbang jdk install %s', pass it with --java-home, or export the kernel with --include-jdk.",
+                        kernel, bundle, javaVersion, javaVersion)));
+    }
+
+    /**
+     * Resolves a path from the bundle below <code>dir</code>, rejecting entries such as <code>kernel/../../.bashrc</code>
+     * that would be written outside of it.
+     */
+    Path inside(Path dir, String name) throws IOException {
+        Path resolved = dir.resolve(name).normalize();
+        if (!resolved.startsWith(dir.normalize()) || resolved.equals(dir.normalize())) {
+            throw new IOException("'" + name + "' in " + bundle + " points outside of the directory it is unpacked to");
+        }
+        return resolved;
     }
 }
 }
@@ -6,6 +6,10 @@
 
 import argparse
 import json
+import os
+import sys
+import time
+from collections import deque
 from threading import Thread
 
 import zmq
@@ -15,9 +19,314 @@ from jupyter_client.manager import KernelManager
 from jupyter_client.session import Session
 from traitlets.traitlets import Type
 
+DELIMITER = b"<IDS|MSG>"
+
+# Stream output merged into one message while the frontend is behind is capped, so
+# the frontend still gets it in pieces it can render as they come.
+COALESCE_BYTES = 1024 * 1024
+
+# iopub messages handled per round of the forwarding loop, before control, shell
+# and stdin get their turn again.
+IOPUB_BATCH = 64
+
+
+class Pipe(object):
+    """Forwards messages from one socket to another through a queue of at most hwm
+    messages. Once it is full the source is no longer read, so zmq's own high-water
+    marks push back on the sender instead of the proxy buffering without limit."""
+
+    def __init__(self, stats: dict, counter: str, source: zmq.Socket, target: zmq.Socket, hwm: int):
+        self.stats = stats
+        self.counter = counter
+        self.source = source
+        self.target = target
+        self.hwm = hwm
+        self.queue = deque()
+        # the target did not take the last message, polling it for POLLOUT would not
+        # help as PUB and XPUB sockets always report being writable
+        self.blocked = False
+
+    def readable(self) -> bool:
+        return len(self.queue) < self.hwm
+
+    def receive(self, limit: int):
+        for _ in range(limit):
+            if not self.readable():
+                return
+            try:
+                frames = self.source.recv_multipart(zmq.NOBLOCK)
+            except zmq.Again:
+                return
+            self.push(frames)
+            self.stats["peak_queued"] = max(self.stats["peak_queued"], len(self.queue))
+
+    def push(self, frames: list):
+        self.queue.append(frames)
+
+    def flush(self, limit: int):
+        self.blocked = False
+        while self.queue and limit > 0:
+            frames = self.next_frames()
+            limit -= 1
+            try:
+                self.target.send_multipart(frames, zmq.NOBLOCK)
+            except zmq.Again:
+                self.blocked = True
+                return
+            except zmq.ZMQError as e:
+                if e.errno != zmq.EHOSTUNREACH:
+                    raise
+                # a reply for a frontend that is gone
+                self.pop()
+                self.stats["unroutable"] += 1
+                continue
+            self.pop()
+            self.stats[self.counter] += 1
+            self.stats["bytes_" + self.counter] += sum(len(frame) for frame in frames)
+
+    def next_frames(self) -> list:
+        return self.queue[0]
+
+    def pop(self):
+        self.queue.popleft()
+
+
+class Queued(object):
+    """An iopub message waiting for the frontend. Stream output merged into it is
+    only serialized and signed again when it is sent."""
+
+    def __init__(self, frames: list, size: int, stream=None, content=None):
+        self.frames = frames
+        self.size = size
+        self.stream = stream
+        self.content = content
+        # encoded length of the stream text, which is what COALESCE_BYTES caps
+        self.text_bytes = len(content["text"].encode()) if content is not None else 0
+        self.merged = False
+
+
+class IopubPipe(Pipe):
+    """Forwards iopub to the frontend within a budget of bytes. What happens to stream
+    output of a frontend that falls behind depends on the policy: 'coalesce' merges
+    consecutive output of a cell to the same stream and drops what does not fit the
+    budget, 'drop' only drops, 'block' stops reading the kernel's iopub, whose own
+    high-water mark then applies. Other messages, like status and results, are never
+    dropped or reordered. Dropped output is reported in the stream it was dropped from."""
+
+    def __init__(self, stats: dict, source: zmq.Socket, target: zmq.Socket, hwm: int, limit: int, policy: str, session: Session):
+        super().__init__(stats, "to_frontend", source, target, hwm)
+        self.limit = limit
+        self.policy = policy
+        self.session = session
+        self.queued_bytes = 0
+        # (parent header, stream name) -> [messages dropped, topic]
+        self.dropped = {}
+
+    def full(self) -> bool:
+        return self.queued_bytes >= self.limit or len(self.queue) >= self.hwm
+
+    def readable(self) -> bool:
+        if self.policy == "block":
+            return not self.full()
+        # stream output beyond the budget is dropped here, other messages may take as much again
+        return self.queued_bytes < 2 * self.limit and len(self.queue) < 2 * self.hwm
+
+    def push(self, frames: list):
+        size = sum(len(frame) for frame in frames)
+        stream = None
+        content = None
+        delimiter = 0
+        if self.policy != "block":
+            try:
+                delimiter = frames.index(DELIMITER)
+                if b'"stream"' in frames[delimiter + 2] and json.loads(frames[delimiter + 2])["msg_type"] == "stream":
+                    content = json.loads(frames[delimiter + 5])
+                    if isinstance(content.get("text"), str):
+                        stream = (frames[delimiter + 3], content.get("name"))
+                    else:
+                        self.stats["malformed"] += 1
+            except (ValueError, IndexError, KeyError, TypeError, AttributeError):
+                # not a message this proxy can coalesce or drop, the frontend gets it as it came
+                self.stats["malformed"] += 1
+
+        if stream is None:
+            self.report_dropped()
+            self.append(Queued(frames, size))
+            return
+
+        if self.policy == "coalesce" and self.queue:
+            last = self.queue[-1]
+            text_bytes = len(content["text"].encode())
+            if last.stream == stream and last.text_bytes + text_bytes <= COALESCE_BYTES:
+                last.content["text"] += content["text"]
+                last.text_bytes += text_bytes
+                last.merged = True
+                last.size += text_bytes
+                self.queued_bytes += text_bytes
+                self.stats["coalesced"] += 1
+                self.update_peaks()
+                return
+
+        if self.full():
+            drop = self.dropped.setdefault(stream, [0, frames[:delimiter]])
+            drop[0] += 1
+            self.stats["dropped"] += 1
+            return
+        self.report_dropped()
+        self.append(Queued(frames, size, stream, content))
+
+    def report_dropped(self):
+        for (parent, name), (count, topic) in self.dropped.items():
+            try:
+                parent = json.loads(parent)
+            except ValueError:
+                parent = None
+            if not isinstance(parent, dict):
+                # the notice still goes out, just not attributed to the cell
+                parent = {}
+                self.stats["malformed"] += 1
+            notice = self.session.msg("stream", content={
+                "name": name,
+                "text": f"\n[ipc proxy: {count} outputs dropped, the frontend did not keep up]\n",
+            }, parent=parent)
+            frames = self.session.serialize(notice, ident=topic)
+            self.append(Queued(frames, sum(len(frame) for frame in frames)))
+        self.dropped.clear()
+
+    def append(self, queued: Queued):
+        self.queue.append(queued)
+        self.queued_bytes += queued.size
+        self.update_peaks()
+
+    def update_peaks(self):
+        self.stats["peak_queued"] = max(self.stats["peak_queued"], len(self.queue))
+        self.stats["peak_queued_bytes"] = max(self.stats["peak_queued_bytes"], self.queued_bytes)
+
+    def next_frames(self) -> list:
+        queued = self.queue[0]
+        if queued.merged:
+            delimiter = queued.frames.index(DELIMITER)
+            header, parent, metadata = queued.frames[delimiter + 2:delimiter + 5]
+            content = self.session.pack(queued.content)
+            queued.frames = queued.frames[:delimiter + 1] + [self.session.sign([header, parent, metadata, content]), header, parent, metadata, content] + queued.frames[delimiter + 6:]
+            queued.merged = False
+        return queued.frames
+
+    def pop(self):
+        self.queued_bytes -= self.queue.popleft().size
+        if not self.queue:
+            self.report_dropped()
+
+
+class Forwarder(object):
+    """Forwards all channels but heartbeat in one thread. Each round control goes first,
+    then shell and stdin, and only then a batch of iopub, so a cell flooding iopub
+    cannot hold up an interrupt or a shutdown. Counters per channel are appended to
+    proxy-<pid>.jsonl in the stats directory."""
+
+    def __init__(self, hwm: int, iopub_limit: int, iopub_policy: str, session: Session, stats_dir=None, stats_interval=10.0):
+        self.hwm = hwm
+        self.iopub_limit = iopub_limit
+        self.iopub_policy = iopub_policy
+        self.session = session
+        self.stats_file = os.path.join(stats_dir, f"proxy-{os.getpid()}.jsonl") if stats_dir else None
+        self.stats_interval = stats_interval
+        self.pipes = {}
+        self.stats = {}
+        self.subscriptions = []
+        self.running = False
+        self.thread = None
+
+    def add(self, channel: str, frontend: zmq.Socket, kernel: zmq.Socket):
+        stats = {"to_kernel": 0, "bytes_to_kernel": 0, "to_frontend": 0, "bytes_to_frontend": 0,
+                 "unroutable": 0, "queued": 0, "peak_queued": 0}
+        self.stats[channel] = stats
+        if channel == "iopub":
+            stats.update({"dropped": 0, "coalesced": 0, "malformed": 0, "queued_bytes": 0, "peak_queued_bytes": 0})
+            self.pipes[channel] = [IopubPipe(stats, kernel, frontend, self.hwm, self.iopub_limit, self.iopub_policy, self.session)]
+            # the frontend's subscriptions are read off the XPUB socket
+            self.subscriptions.append(frontend)
+        else:
+            self.pipes[channel] = [Pipe(stats, "to_kernel", frontend, kernel, self.hwm),
+                                   Pipe(stats, "to_frontend", kernel, frontend, self.hwm)]
+
+    def start(self):
+        self.running = True
+        self.thread = Thread(target=self.run, name="ipc-proxy", daemon=True)
+        self.thread.start()
+
+    def stop(self):
+        self.running = False
+        if self.thread is not None:
+            self.thread.join(timeout=2)
+        self.write_stats()
+
+    def run(self):
+        order = [channel for channel in ("control", "shell", "stdin", "iopub") if channel in self.pipes]
+        poller = zmq.Poller()
+        next_stats = time.monotonic() + self.stats_interval
+        while self.running:
+            flags = {}
+            for subscriptions in self.subscriptions:
+                flags[subscriptions] = zmq.POLLIN
+            blocked = False
+            for channel in order:
+                for pipe in self.pipes[channel]:
+                    flags[pipe.source] = flags.get(pipe.source, 0) | (zmq.POLLIN if pipe.readable() else 0)
+                    flags[pipe.target] = flags.get(pipe.target, 0) | (zmq.POLLOUT if pipe.queue and not pipe.blocked else 0)
+                    blocked = blocked or pipe.blocked
+            for socket, flag in flags.items():
+                # no flags unregisters the socket
+                poller.register(socket, flag)
+            # retry a blocked target soon, it cannot tell when it can take more
+            poller.poll(10 if blocked else 100)
+
+            for subscriptions in self.subscriptions:
+                try:
+                    while True:
+                        subscriptions.recv_multipart(zmq.NOBLOCK)
+                except zmq.Again:
+                    pass
+            for channel in order:
+                limit = IOPUB_BATCH if channel == "iopub" else self.hwm
+                for pipe in self.pipes[channel]:
+                    pipe.receive(limit)
+                    pipe.flush(limit)
+
+            if self.stats_file and time.monotonic() >= next_stats:
+                self.write_stats()
+                next_stats = time.monotonic() + self.stats_interval
+
+    def snapshot(self) -> dict:
+        for channel, pipes in self.pipes.items():
+            self.stats[channel]["queued"] = sum(len(pipe.queue) for pipe in pipes)
+            if channel == "iopub":
+                self.stats[channel]["queued_bytes"] = pipes[0].queued_bytes
+        return {"timestamp": int(time.time() * 1000), "pid": os.getpid(), "channels": self.stats}
+
+    def write_stats(self):
+        if not self.stats_file:
+            return
+        try:
+            with open(self.stats_file, "a") as out:
+                out.write(json.dumps(self.snapshot()) + "\n")
+        except OSError as e:
+            print(f"Could not write proxy stats to {self.stats_file}: {e}", file=sys.stderr)
+
+
 parser = argparse.ArgumentParser()
 parser.add_argument("connection_file")
 parser.add_argument("--kernel", type=str, required=True)
+parser.add_argument("--hwm", type=int, default=1000,
+                    help="high-water mark, in messages, of every socket and queue of the proxy")
+parser.add_argument("--iopub-buffer", type=int, default=64,
+                    help="megabytes of iopub messages queued for a frontend that falls behind")
+parser.add_argument("--iopub-policy", choices=["coalesce", "drop", "block"], default="coalesce",
+                    help="what to do with stream output that does not fit the iopub buffer")
+parser.add_argument("--stats-dir", type=str,
+                    help="directory to append counters per channel to, as proxy-<pid>.jsonl")
+parser.add_argument("--stats-interval", type=float, default=10.0,
+                    help="seconds between counter snapshots")
 args = parser.parse_args()
 
 # parse connection file details
@@ -43,7 +352,11 @@ with open(args.connection_file, "r") as connection_file:
 # iopub   | PUB         | SUB
 # hb      | REP         | REQ
 
+# Sockets take their high-water marks from the context, including the ones
+# jupyter_client connects to the real kernel.
 zmq_context = zmq.Context()
+zmq_context.setsockopt(zmq.SNDHWM, args.hwm)
+zmq_context.setsockopt(zmq.RCVHWM, args.hwm)
 
 
 def create_and_bind_socket(port: int, socket_type: int):
@@ -59,6 +372,12 @@ def create_and_bind_socket(port: int, socket_type: int):
 
     socket: zmq.Socket = zmq_context.socket(socket_type)
     socket.linger = 1000  # ipykernel does this
+    if socket_type == zmq.ROUTER:
+        # report a full peer instead of dropping the message
+        socket.setsockopt(zmq.ROUTER_MANDATORY, 1)
+    elif socket_type == zmq.XPUB:
+        # a PUB socket drops silently at the high-water mark, XPUB can tell
+        socket.setsockopt(zmq.XPUB_NODROP, 1)
     socket.bind(addr)
     return socket
 
@@ -66,15 +385,16 @@ def create_and_bind_socket(port: int, socket_type: int):
 shell_socket = create_and_bind_socket(shell_port, zmq.ROUTER)
 stdin_socket = create_and_bind_socket(stdin_port, zmq.ROUTER)
 control_socket = create_and_bind_socket(control_port, zmq.ROUTER)
-iopub_socket = create_and_bind_socket(iopub_port, zmq.PUB)
+iopub_socket = create_and_bind_socket(iopub_port, zmq.XPUB)
 hb_socket = create_and_bind_socket(hb_port, zmq.REP)
 
 # Proxy and the real kernel have their own heartbeats. (shoutout to ipykernel
-# for this neat little heartbeat implementation)
-Thread(target=zmq.device, args=(zmq.QUEUE, hb_socket, hb_socket)).start()
+# for this neat little heartbeat implementation) It runs in zmq's C code on
+# its own thread, so however busy the forwarding gets, heartbeats are answered.
+Thread(target=zmq.device, args=(zmq.QUEUE, hb_socket, hb_socket), daemon=True).start()
 
 
-def ZMQProxyChannel_factory(proxy_server_socket: zmq.Socket):
+def ZMQProxyChannel_factory(channel: str, proxy_server_socket: zmq.Socket):
     class ZMQProxyChannel(object):
         kernel_client_socket: zmq.Socket = None
         session: Session = None
@@ -85,13 +405,9 @@ def ZMQProxyChannel_factory(proxy_server_socket: zmq.Socket):
             self.session = session
 
         def start(self):
-            # Very convenient zmq device here, proxy will handle the actual zmq
-            # proxying on each of our connected sockets (other than heartbeat).
-            # It blocks while they are connected so stick it in a thread.
-            Thread(
-                target=zmq.proxy,
-                args=(proxy_server_socket, self.kernel_client_socket),
-            ).start()
+            # The forwarder handles the actual proxying of each of our
+            # connected sockets (other than heartbeat) once all are started.
+            forwarder.add(channel, proxy_server_socket, self.kernel_client_socket)
 
         def stop(self):
             if self.kernel_client_socket is not None:
@@ -108,10 +424,10 @@ def ZMQProxyChannel_factory(proxy_server_socket: zmq.Socket):
 
 
 class ProxyKernelClient(KernelClient):
-    shell_channel_class = Type(ZMQProxyChannel_factory(shell_socket))
-    stdin_channel_class = Type(ZMQProxyChannel_factory(stdin_socket))
-    control_channel_class = Type(ZMQProxyChannel_factory(control_socket))
-    iopub_channel_class = Type(ZMQProxyChannel_factory(iopub_socket))
+    shell_channel_class = Type(ZMQProxyChannel_factory("shell", shell_socket))
+    stdin_channel_class = Type(ZMQProxyChannel_factory("stdin", stdin_socket))
+    control_channel_class = Type(ZMQProxyChannel_factory("control", control_socket))
+    iopub_channel_class = Type(ZMQProxyChannel_factory("iopub", iopub_socket))
     hb_channel_class = Type(HBChannel)
 
 
@@ -123,20 +439,28 @@ kernel_manager.autorestart = False
 
 # Make sure the wrapped kernel uses the same session info. This way we don't
 # need to decode them before forwarding, we can directly pass everything
-# through.
+# through. Only merged stream output and drop notices are signed again.
 kernel_manager.session.signature_scheme = signature_scheme
 kernel_manager.session.key = key
 
+forwarder = Forwarder(args.hwm, args.iopub_buffer * 1024 * 1024, args.iopub_policy, kernel_manager.session,
+                      args.stats_dir, args.stats_interval)
+
 kernel_manager.start_kernel()
 
 # Connect to the real kernel we just started and start up all the proxies.
-kernel_client: ProxyKernelClient = kernel_manager.client()
+kernel_client: ProxyKernelClient = kernel_manager.client(context=zmq_context)
 kernel_client.start_channels()
+forwarder.start()
 
 
 # Everything should be up and running. We now just wait for the managed kernel
 # process to exit and when that happens, shutdown and exit with the same code.
 exit_code = kernel_manager.kernel.wait()
+forwarder.stop()
+iopub = forwarder.stats.get("iopub", {})
+print(f"ipc proxy: {iopub.get('to_frontend', 0)} iopub messages forwarded, {iopub.get('coalesced', 0)} coalesced, "
+      f"{iopub.get('dropped', 0)} dropped, at most {iopub.get('peak_queued_bytes', 0) // 1024} KB queued", file=sys.stderr)
 kernel_client.stop_channels()
 zmq_context.destroy(0)
 exit(exit_code)
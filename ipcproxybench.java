@@ -0,0 +1,423 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 11+
+//SOURCES ipcproxykernel.java
+
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures what the IPC proxy kernel costs. Starts a stub kernel and drives its shell, control,
+ * iopub and heartbeat channels from a local Jupyter protocol client, directly over tcp and through
+ * the proxies over ipc. Runs offline on a single box. The ipc runs need Java 16, the installer shares the tcp
+ * client on Java 11.
+ *
+ * Usage: ipcproxybench [--iterations=200] [--sizes=128,1048576,4194304] [--python-proxy=ipc_proxy_kernel.py] [--json]
+ */
+class ipcproxybench {
+
+    static final String DELIMITER = "<IDS|MSG>";
+    static final int SYNC_SIZE = 7;
+    static final String[] CHANNELS = {"shell", "iopub", "stdin", "control", "hb"};
+
+    public static void main(String... args) throws Exception {
+        if (args.length > 0 && args[0].equals("--stub-kernel")) {
+            stubKernel(Path.of(args[1]));
+            return;
+        }
+
+        int iterations = 200;
+        List<Integer> sizes = List.of(128, 1024 * 1024, 4 * 1024 * 1024);
+        Path pythonProxy = null;
+        boolean json = false;
+        for (String arg : args) {
+            if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--sizes=")) {
+                sizes = Arrays.stream(arg.substring("--sizes=".length()).split(",")).map(Integer::parseInt).collect(Collectors.toList());
+            } else if (arg.startsWith("--python-proxy=")) {
+                pythonProxy = Path.of(arg.substring("--python-proxy=".length()));
+            } else if (arg.equals("--json")) {
+                json = true;
+            } else {
+                System.err.println("Unknown argument " + arg);
+                System.exit(2);
+            }
+        }
+
+        Path work = Files.createTempDirectory("ipcproxybench");
+        Path kernelDir = work.resolve("kernels").resolve("stub-tcp");
+        Files.createDirectories(kernelDir);
+        String javaCmd = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Files.writeString(kernelDir.resolve("kernel.json"), "{\n  \"argv\": [" + List.of(javaCmd, "-cp", System.getProperty("java.class.path"),
+                "ipcproxybench", "--stub-kernel", "{connection_file}").stream().map(ipcproxykernel.Json::quote).collect(Collectors.joining(", "))
+                + "],\n  \"display_name\": \"stub\",\n  \"language\": \"java\"\n}\n");
+
+        var modes = new LinkedHashMap<String, List<String>>();
+        modes.put("direct", List.of(javaCmd, "-cp", System.getProperty("java.class.path"), "ipcproxybench", "--stub-kernel"));
+        modes.put("java-proxy", List.of(javaCmd, "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-cp", System.getProperty("java.class.path"),
+                "ipcproxykernel", "--kernel-dir=" + kernelDir));
+        if (pythonProxy != null) {
+            modes.put("python-proxy", List.of("python3", pythonProxy.toAbsolutePath().toString(), "--kernel=stub-tcp"));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (var mode : modes.entrySet()) {
+            boolean direct = mode.getKey().equals("direct");
+            Connection connection = Connection.create(direct ? "tcp" : "ipc", work);
+            Path connectionFile = work.resolve(mode.getKey() + ".json");
+            Files.writeString(connectionFile, connection.toJson());
+
+            List<String> argv = new ArrayList<>(mode.getValue());
+            // the proxies take the connection file first, the stub kernel last
+            argv.add(direct ? argv.size() : argv.size() - 1, connectionFile.toString());
+            var builder = new ProcessBuilder(argv).inheritIO();
+            builder.environment().put("JUPYTER_PATH", work.toString());
+            Process process = builder.start();
+            try (Client client = new Client(connection)) {
+                client.warmup();
+                results.add(client.heartbeat(mode.getKey(), iterations));
+                results.add(client.control(mode.getKey(), iterations));
+                for (int size : sizes) {
+                    results.add(client.execute(mode.getKey(), size, size > 1024 * 1024 ? Math.max(10, iterations / 10) : iterations));
+                }
+            } finally {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+
+        if (json) {
+            out.println(results.stream().map(Result::toJson).collect(Collectors.joining(",\n", "[\n", "\n]")));
+        } else {
+            out.println(String.format("%-13s %-18s %8s %12s %10s %10s %12s", "mode", "benchmark", "n", "msg/s", "p50 us", "p99 us", "MB/s"));
+            results.forEach(result -> out.println(result));
+        }
+    }
+
+    static class Result {
+        final String mode;
+        final String benchmark;
+        final long[] nanos;
+        final long bytes;
+        final long totalNanos;
+
+        Result(String mode, String benchmark, long[] nanos, long bytes, long totalNanos) {
+            this.mode = mode;
+            this.benchmark = benchmark;
+            this.nanos = nanos.clone();
+            Arrays.sort(this.nanos);
+            this.bytes = bytes;
+            this.totalNanos = totalNanos;
+        }
+
+        double percentileMicros(double p) {
+            return nanos[Math.min(nanos.length - 1, (int) Math.ceil(p * nanos.length) - 1)] / 1000.0;
+        }
+
+        double perSecond() {
+            return nanos.length * 1e9 / totalNanos;
+        }
+
+        double megabytesPerSecond() {
+            return bytes * 1e9 / totalNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %-18s %8d %12.0f %10.1f %10.1f %12.1f", mode, benchmark, nanos.length, perSecond(),
+                    percentileMicros(0.5), percentileMicros(0.99), megabytesPerSecond());
+        }
+
+        String toJson() {
+            return String.format("  {\"mode\": \"%s\", \"benchmark\": \"%s\", \"n\": %d, \"msg_per_sec\": %.1f, \"p50_us\": %.1f, \"p99_us\": %.1f, \"mb_per_sec\": %.2f}",
+                    mode, benchmark, nanos.length, perSecond(), percentileMicros(0.5), percentileMicros(0.99), megabytesPerSecond());
+        }
+    }
+
+    static class Connection {
+        final String transport;
+        final String ip;
+        final String key = UUID.randomUUID().toString();
+        final Map<String, Integer> ports = new LinkedHashMap<>();
+
+        Connection(String transport, String ip) {
+            this.transport = transport;
+            this.ip = ip;
+        }
+
+        static Connection create(String transport, Path work) throws IOException {
+            Connection connection = new Connection(transport, "tcp".equals(transport) ? "127.0.0.1" : work.resolve("kernel").toString());
+            for (String channel : CHANNELS) {
+                try (var socket = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+                    connection.ports.put(channel, ((InetSocketAddress) socket.getLocalAddress()).getPort());
+                }
+            }
+            return connection;
+        }
+
+        static Connection read(Path file) throws IOException {
+            Map<String, Object> json = ipcproxykernel.Json.object(Files.readString(file));
+            Connection connection = new Connection(String.valueOf(json.get("transport")), String.valueOf(json.get("ip")));
+            for (String channel : CHANNELS) {
+                connection.ports.put(channel, ((Number) json.get(channel + "_port")).intValue());
+            }
+            return connection;
+        }
+
+        SocketAddress address(String channel) {
+            if ("ipc".equals(transport)) {
+                return ipcproxykernel.unixDomainAddress(Path.of(ip + "-" + ports.get(channel)));
+            }
+            return new InetSocketAddress(ip, ports.get(channel));
+        }
+
+        String toJson() {
+            return "{\n  \"transport\": \"" + transport + "\",\n  \"ip\": " + ipcproxykernel.Json.quote(ip) + ",\n  \"key\": \"" + key
+                    + "\",\n  \"signature_scheme\": \"hmac-sha256\",\n"
+                    + ports.entrySet().stream().map(e -> "  \"" + e.getKey() + "_port\": " + e.getValue()).collect(Collectors.joining(",\n"))
+                    + "\n}\n";
+        }
+    }
+
+    /**
+     * A Jupyter protocol client with one connection per channel, signing messages like a real frontend.
+     */
+    static class Client implements AutoCloseable {
+        final Connection connection;
+        final ipcproxykernel.Zmtp shell;
+        final ipcproxykernel.Zmtp control;
+        final ipcproxykernel.Zmtp iopub;
+        final ipcproxykernel.Zmtp hb;
+        final Mac mac;
+        final String session = UUID.randomUUID().toString();
+
+        Client(Connection connection) throws Exception {
+            this.connection = connection;
+            byte[] identity = session.getBytes(StandardCharsets.US_ASCII);
+            shell = connect("shell", "DEALER", "Identity", identity);
+            control = connect("control", "DEALER", "Identity", identity);
+            iopub = connect("iopub", "SUB");
+            iopub.write(List.of(ByteBuffer.wrap(new byte[] {1})));
+            hb = connect("hb", "REQ");
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(connection.key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        }
+
+        ipcproxykernel.Zmtp connect(String channel, String socketType, Object... properties) throws Exception {
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (true) {
+                try {
+                    SocketChannel socket = SocketChannel.open(connection.address(channel));
+                    var zmtp = new ipcproxykernel.Zmtp(socket);
+                    zmtp.handshake(socketType, false, properties);
+                    return zmtp;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(20);
+                }
+            }
+        }
+
+        List<ByteBuffer> message(String msgType, String content) {
+            String header = "{\"msg_id\": \"" + UUID.randomUUID() + "\", \"session\": \"" + session + "\", \"username\": \"bench\", \"msg_type\": \""
+                    + msgType + "\", \"version\": \"5.3\"}";
+            byte[][] parts = {header.getBytes(StandardCharsets.UTF_8), "{}".getBytes(StandardCharsets.UTF_8),
+                    "{}".getBytes(StandardCharsets.UTF_8), content.getBytes(StandardCharsets.UTF_8)};
+            for (byte[] part : parts) {
+                mac.update(part);
+            }
+            StringBuilder signature = new StringBuilder();
+            for (byte b : mac.doFinal()) {
+                signature.append(String.format("%02x", b));
+            }
+            List<ByteBuffer> frames = new ArrayList<>();
+            frames.add(ByteBuffer.wrap(DELIMITER.getBytes(StandardCharsets.US_ASCII)));
+            frames.add(ByteBuffer.wrap(signature.toString().getBytes(StandardCharsets.US_ASCII)));
+            for (byte[] part : parts) {
+                frames.add(ByteBuffer.wrap(part));
+            }
+            return frames;
+        }
+
+        /**
+         * Waits until the iopub subscription made it through, pub/sub drops everything before that.
+         * Then drains iopub up to a marker message so every later read belongs to its own request.
+         */
+        void warmup() throws Exception {
+            var received = new CountDownLatch(1);
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        List<ByteBuffer> message = iopub.read();
+                        received.countDown();
+                        if (message.get(message.size() - 1).remaining() == SYNC_SIZE) {
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    // reported by the benchmarks
+                }
+            });
+            reader.start();
+            while (!received.await(50, TimeUnit.MILLISECONDS)) {
+                shell.write(message("execute_request", "{\"code\": \"\", \"size\": 1}"));
+                shell.read();
+            }
+            shell.write(message("execute_request", "{\"code\": \"\", \"size\": " + SYNC_SIZE + "}"));
+            shell.read();
+            reader.join();
+        }
+
+        Result heartbeat(String mode, int iterations) throws IOException {
+            long[] nanos = new long[iterations];
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t = System.nanoTime();
+                hb.write(List.of(ByteBuffer.allocate(0), ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII))));
+                hb.read();
+                nanos[i] = System.nanoTime() - t;
+            }
+            return new Result(mode, "heartbeat", nanos, 4L * iterations, System.nanoTime() - start);
+        }
+
+        Result control(String mode, int iterations) throws IOException {
+            long[] nanos = new long[iterations];
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t = System.nanoTime();
+                control.write(message("kernel_info_request", "{}"));
+                control.read();
+                nanos[i] = System.nanoTime() - t;
+            }
+            return new Result(mode, "control", nanos, 0, System.nanoTime() - start);
+        }
+
+        /**
+         * An execute request on shell that makes the stub kernel publish a display_data of <code>size</code> bytes on iopub.
+         */
+        Result execute(String mode, int size, int iterations) throws IOException {
+            long[] nanos = new long[iterations];
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t = System.nanoTime();
+                shell.write(message("execute_request", "{\"code\": \"\", \"size\": " + size + "}"));
+                shell.read();
+                for (ByteBuffer frame : iopub.read()) {
+                    bytes += frame.remaining();
+                }
+                nanos[i] = System.nanoTime() - t;
+            }
+            return new Result(mode, "execute " + humanSize(size), nanos, bytes, System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var zmtp : List.of(shell, control, iopub, hb)) {
+                zmtp.close();
+            }
+        }
+    }
+
+    static String humanSize(int size) {
+        if (size >= 1024 * 1024) {
+            return size / (1024 * 1024) + "MB";
+        }
+        return size >= 1024 ? size / 1024 + "KB" : size + "B";
+    }
+
+    /**
+     * Just enough of a kernel to answer the benchmark: replies on shell and control, publishes
+     * a display_data of the requested size on iopub and echoes heartbeats. Signatures are not checked.
+     */
+    static void stubKernel(Path connectionFile) throws Exception {
+        Connection connection = Connection.read(connectionFile);
+        var subscribers = new CopyOnWriteArrayList<ipcproxykernel.Zmtp>();
+
+        serve(connection, "iopub", "PUB", peer -> {
+            subscribers.add(peer);
+            while (true) {
+                peer.read(); // subscriptions, everything is published to everyone
+            }
+        });
+        serve(connection, "hb", "REP", peer -> {
+            while (true) {
+                peer.write(peer.read());
+            }
+        });
+        serve(connection, "stdin", "ROUTER", peer -> {
+            while (true) {
+                peer.read();
+            }
+        });
+        ipcproxykernel.Session router = peer -> {
+            while (true) {
+                List<ByteBuffer> request = peer.read();
+                int delimiter = 0;
+                while (!StandardCharsets.US_ASCII.decode(request.get(delimiter).duplicate()).toString().equals(DELIMITER)) {
+                    delimiter++;
+                }
+                String content = StandardCharsets.UTF_8.decode(request.get(delimiter + 5).duplicate()).toString();
+                int sizeIndex = content.indexOf("\"size\": ");
+                if (sizeIndex >= 0) {
+                    int size = Integer.parseInt(content.substring(sizeIndex + 8, content.indexOf('}', sizeIndex)).trim());
+                    List<ByteBuffer> display = new ArrayList<>();
+                    display.add(ByteBuffer.wrap("kernel.stub.display_data".getBytes(StandardCharsets.US_ASCII)));
+                    display.addAll(request.subList(delimiter, delimiter + 5));
+                    display.add(ByteBuffer.allocate(size));
+                    for (var subscriber : subscribers) {
+                        subscriber.write(display);
+                    }
+                }
+                List<ByteBuffer> reply = new ArrayList<>(request.subList(0, delimiter + 5));
+                reply.add(ByteBuffer.wrap("{\"status\": \"ok\"}".getBytes(StandardCharsets.UTF_8)));
+                peer.write(reply);
+            }
+        };
+        serve(connection, "control", "ROUTER", router);
+        serve(connection, "shell", "ROUTER", router);
+
+        // the client or the proxy destroys the stub kernel when done
+        Thread.currentThread().join();
+    }
+
+    static void serve(Connection connection, String channel, String socketType, ipcproxykernel.Session session) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open().bind(connection.address(channel));
+        ipcproxykernel.daemon(channel + "-accept", () -> {
+            while (true) {
+                SocketChannel socket = server.accept();
+                socket.socket().setTcpNoDelay(true);
+                ipcproxykernel.daemon(channel + "-peer", () -> {
+                    try (var peer = new ipcproxykernel.Zmtp(socket)) {
+                        peer.handshake(socketType, true);
+                        session.run(peer);
+                    }
+                });
+            }
+        });
+    }
+}
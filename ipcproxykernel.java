@@ -0,0 +1,684 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 11+
+
+import static java.lang.System.err;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proxies the connection between the Jupyter notebook and a java kernel, like ipc_proxy_kernel.py
+ * but without a python interpreter in between. This is necessary when ipc is used like in google colab
+ * as java zmq implementations do not implement ipc.
+ *
+ * Speaks ZMTP 3.0 with the NULL mechanism on both sides: unix domain sockets (or tcp) towards the
+ * notebook, tcp towards the kernel. Frames are forwarded as is, jupyter messages are never decoded.
+ * Heartbeats are answered by the proxy itself. Unix domain sockets need Java 16, the rest runs on Java 11,
+ * so the installer can share the protocol code.
+ *
+ * Usage: ipcproxykernel {connection_file} --kernel-dir=path/to/tcp/kernel
+ */
+class ipcproxykernel {
+
+    public static void main(String... args) throws Exception {
+        String connectionFile = null;
+        Path kernelDir = null;
+        for (String arg : args) {
+            if (arg.startsWith("--kernel-dir=")) {
+                kernelDir = Path.of(arg.substring("--kernel-dir=".length()));
+            } else {
+                connectionFile = arg;
+            }
+        }
+        if (connectionFile == null || kernelDir == null) {
+            err.println("Usage: ipcproxykernel {connection_file} --kernel-dir=<dir of the tcp kernel>");
+            System.exit(2);
+        }
+
+        Map<String, Object> connection = Json.object(Files.readString(Path.of(connectionFile)));
+        Map<String, Object> kernelJson = Json.object(Files.readString(kernelDir.resolve("kernel.json")));
+
+        ipcproxykernel proxy = new ipcproxykernel(connection);
+        Process kernel = proxy.startKernel(kernelJson);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            kernel.destroy();
+            proxy.close();
+        }));
+        proxy.start(kernel);
+
+        // Everything should be up and running. We now just wait for the kernel to exit
+        // and when that happens, shutdown and exit with the same code.
+        int exitCode = kernel.waitFor();
+        System.exit(exitCode);
+    }
+
+    // channel | kernel_type | client_type
+    // shell   | ROUTER      | DEALER
+    // stdin   | ROUTER      | DEALER
+    // ctrl    | ROUTER      | DEALER
+    // iopub   | PUB         | SUB
+    // hb      | REP         | REQ
+
+    final Map<String, Object> connection;
+    final Map<String, Integer> kernelPorts = new LinkedHashMap<>();
+    final List<ServerSocketChannel> servers = new ArrayList<>();
+    final List<Path> socketFiles = new ArrayList<>();
+
+    /** Shell, stdin and control share one identity so the kernel can route stdin requests back. */
+    final byte[] identity = UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII);
+
+    ipcproxykernel(Map<String, Object> connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Starts the real kernel on tcp with fresh ports and the same session key,
+     * so messages can be passed through without re-signing them.
+     */
+    Process startKernel(Map<String, Object> kernelJson) throws IOException {
+        var tcp = new StringBuilder("{\n  \"transport\": \"tcp\",\n  \"ip\": \"127.0.0.1\",\n");
+        tcp.append("  \"key\": ").append(Json.quote(String.valueOf(connection.get("key")))).append(",\n");
+        tcp.append("  \"signature_scheme\": ").append(Json.quote(String.valueOf(connection.get("signature_scheme")))).append(",\n");
+        for (String channel : List.of("shell", "iopub", "stdin", "control", "hb")) {
+            try (var socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                kernelPorts.put(channel, socket.getLocalPort());
+            }
+            tcp.append("  \"").append(channel).append("_port\": ").append(kernelPorts.get(channel)).append(channel.equals("hb") ? "\n" : ",\n");
+        }
+        tcp.append("}\n");
+
+        Path tcpConnectionFile = Files.createTempFile("kernel-tcp-", ".json");
+        tcpConnectionFile.toFile().deleteOnExit();
+        Files.writeString(tcpConnectionFile, tcp);
+
+        List<String> argv = new ArrayList<>();
+        for (Object arg : (List<?>) kernelJson.get("argv")) {
+            argv.add(String.valueOf(arg).replace("{connection_file}", tcpConnectionFile.toString()));
+        }
+        var builder = new ProcessBuilder(argv).inheritIO();
+        Object env = kernelJson.get("env");
+        if (env instanceof Map) {
+            ((Map<?, ?>) env).forEach((key, value) -> builder.environment().put(String.valueOf(key), String.valueOf(value)));
+        }
+        return builder.start();
+    }
+
+    void start(Process kernel) throws IOException {
+        router("shell");
+        router("stdin");
+        router("control");
+        pub("iopub");
+        heartbeat("hb");
+    }
+
+    void close() {
+        servers.forEach(server -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // shutting down
+            }
+        });
+        socketFiles.forEach(file -> file.toFile().delete());
+    }
+
+    /** Forwards a ROUTER on the notebook side to a DEALER connected to the kernel. */
+    void router(String channel) throws IOException {
+        var peers = new ConcurrentHashMap<ByteBuffer, Zmtp>();
+        var kernel = new KernelConnection(channel, "DEALER", backend -> {
+            while (true) {
+                List<ByteBuffer> message = backend.read();
+                // first frame is the identity of the notebook side peer the reply is for
+                Zmtp peer = peers.get(message.get(0));
+                if (peer != null) {
+                    peer.write(message.subList(1, message.size()));
+                }
+            }
+        });
+
+        var nextId = new AtomicInteger();
+        accept(channel, "ROUTER", peer -> {
+            byte[] id = peer.properties.getOrDefault("Identity", new byte[0]);
+            if (id.length == 0) {
+                int n = nextId.incrementAndGet();
+                id = new byte[] {0, (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n};
+            }
+            ByteBuffer key = ByteBuffer.wrap(id);
+            peers.put(key, peer);
+            try {
+                Zmtp backend = kernel.await();
+                while (true) {
+                    List<ByteBuffer> message = peer.read();
+                    message.add(0, key.duplicate());
+                    backend.write(message);
+                }
+            } finally {
+                peers.remove(key, peer);
+            }
+        });
+    }
+
+    /** Forwards everything published by the kernel to the subscribed notebook side peers. */
+    void pub(String channel) throws IOException {
+        var subscribers = new CopyOnWriteArrayList<Subscriber>();
+        new KernelConnection(channel, "SUB", backend -> {
+            // ZMTP 3.0 style subscription to everything
+            backend.write(List.of(ByteBuffer.wrap(new byte[] {1})));
+            while (true) {
+                List<ByteBuffer> message = backend.read();
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.matches(message.get(0))) {
+                        try {
+                            subscriber.peer.write(message);
+                        } catch (IOException e) {
+                            subscribers.remove(subscriber);
+                        }
+                    }
+                }
+            }
+        });
+
+        accept(channel, "PUB", peer -> {
+            var subscriber = new Subscriber(peer);
+            subscribers.add(subscriber);
+            try {
+                while (true) {
+                    List<ByteBuffer> message = peer.read();
+                    ByteBuffer frame = message.get(0);
+                    if (frame.remaining() > 0 && (frame.get(0) == 0 || frame.get(0) == 1)) {
+                        byte[] topic = new byte[frame.remaining() - 1];
+                        frame.duplicate().position(1).get(topic);
+                        subscriber.update(frame.get(0) == 1, topic);
+                    }
+                }
+            } finally {
+                subscribers.remove(subscriber);
+            }
+        });
+    }
+
+    /** The proxy has its own heartbeat, no need to bother the kernel with it. */
+    void heartbeat(String channel) throws IOException {
+        accept(channel, "REP", peer -> {
+            while (true) {
+                peer.write(peer.read());
+            }
+        });
+    }
+
+    interface Session {
+        void run(Zmtp connection) throws IOException;
+    }
+
+    /**
+     * Binds the notebook side of a channel and runs <code>session</code> for every peer that connects.
+     */
+    void accept(String channel, String socketType, Session session) throws IOException {
+        String transport = String.valueOf(connection.get("transport"));
+        String ip = String.valueOf(connection.get("ip"));
+        int port = ((Number) connection.get(channel + "_port")).intValue();
+
+        ServerSocketChannel server;
+        if ("ipc".equals(transport)) {
+            Path path = Path.of(ip + "-" + port);
+            Files.deleteIfExists(path);
+            server = unixDomainServer();
+            server.bind(unixDomainAddress(path));
+            socketFiles.add(path);
+        } else if ("tcp".equals(transport)) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(ip, port));
+        } else {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        servers.add(server);
+
+        daemon(channel + "-accept", () -> {
+            while (server.isOpen()) {
+                SocketChannel socket = server.accept();
+                daemon(channel + "-peer", () -> {
+                    try (Zmtp peer = new Zmtp(socket)) {
+                        peer.handshake(socketType, true);
+                        session.run(peer);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Connection to the kernel side of a channel, retried until the kernel has bound its ports.
+     */
+    class KernelConnection {
+        final CountDownLatch connected = new CountDownLatch(1);
+        volatile Zmtp zmtp;
+
+        KernelConnection(String channel, String socketType, Session session) {
+            SocketAddress address = new InetSocketAddress("127.0.0.1", kernelPorts.get(channel));
+            daemon(channel + "-kernel", () -> {
+                SocketChannel socket = null;
+                while (socket == null) {
+                    try {
+                        socket = SocketChannel.open(address);
+                    } catch (IOException e) {
+                        sleep(50);
+                    }
+                }
+                socket.socket().setTcpNoDelay(true);
+                try (Zmtp kernel = new Zmtp(socket)) {
+                    if ("DEALER".equals(socketType)) {
+                        kernel.handshake(socketType, false, "Identity", identity);
+                    } else {
+                        kernel.handshake(socketType, false);
+                    }
+                    zmtp = kernel;
+                    connected.countDown();
+                    session.run(kernel);
+                }
+            });
+        }
+
+        Zmtp await() throws IOException {
+            try {
+                connected.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return zmtp;
+        }
+    }
+
+    static class Subscriber {
+        final Zmtp peer;
+        final List<byte[]> topics = new CopyOnWriteArrayList<>();
+
+        Subscriber(Zmtp peer) {
+            this.peer = peer;
+        }
+
+        void update(boolean subscribe, byte[] topic) {
+            if (subscribe) {
+                topics.add(topic);
+            } else {
+                topics.removeIf(t -> Arrays.equals(t, topic));
+            }
+        }
+
+        boolean matches(ByteBuffer frame) {
+            for (byte[] topic : topics) {
+                if (topic.length <= frame.remaining() && frame.duplicate().limit(frame.position() + topic.length).equals(ByteBuffer.wrap(topic))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * A server channel for unix domain sockets. Looked up reflectively like {@link #unixDomainAddress(Path)}, they
+     * came with Java 16 and the tcp transport does not need them.
+     */
+    static ServerSocketChannel unixDomainServer() throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw unixDomainUnavailable(e);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw unixDomainUnavailable(e);
+        }
+    }
+
+    static SocketAddress unixDomainAddress(Path path) {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw unixDomainUnavailable(e);
+        }
+    }
+
+    static UnsupportedOperationException unixDomainUnavailable(Exception e) {
+        return new UnsupportedOperationException("The ipc transport needs unix domain sockets of Java 16 or newer, this is Java " + Runtime.version().feature(), e);
+    }
+
+    static void daemon(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (EOFException e) {
+                // peer went away
+            } catch (IOException e) {
+                if (Boolean.getBoolean("ipcproxy.verbose")) {
+                    err.println(name + ": " + e);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Minimal ZMTP 3.0 framing over a stream channel, NULL security mechanism only.
+     */
+    static class Zmtp implements AutoCloseable {
+        static final int MORE = 1;
+        static final int LONG = 2;
+        static final int COMMAND = 4;
+
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(9);
+        final Map<String, byte[]> properties = new HashMap<>();
+
+        Zmtp(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void handshake(String socketType, boolean asServer, Object... extraProperties) throws IOException {
+            ByteBuffer greeting = ByteBuffer.allocate(64);
+            greeting.put((byte) 0xFF).put(new byte[8]).put((byte) 0x7F);
+            greeting.put((byte) 3).put((byte) 0);
+            greeting.put("NULL".getBytes(StandardCharsets.US_ASCII)).put(new byte[16]);
+            greeting.put((byte) (asServer ? 1 : 0));
+            greeting.rewind(); // the rest is filler
+            writeFully(greeting);
+
+            ByteBuffer peerGreeting = ByteBuffer.allocate(64);
+            readFully(peerGreeting);
+            if ((peerGreeting.get(0) & 0xFF) != 0xFF || peerGreeting.get(9) != 0x7F || peerGreeting.get(10) < 3) {
+                throw new IOException("Peer does not speak ZMTP 3");
+            }
+
+            var ready = new ByteArrayOutputStream();
+            ready.write(5);
+            ready.writeBytes("READY".getBytes(StandardCharsets.US_ASCII));
+            property(ready, "Socket-Type", socketType.getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < extraProperties.length; i += 2) {
+                property(ready, (String) extraProperties[i], (byte[]) extraProperties[i + 1]);
+            }
+            writeFrame(COMMAND, ByteBuffer.wrap(ready.toByteArray()));
+
+            ByteBuffer command = readFrame();
+            int nameLength = command.get() & 0xFF;
+            byte[] name = new byte[nameLength];
+            command.get(name);
+            if (!"READY".equals(new String(name, StandardCharsets.US_ASCII))) {
+                throw new IOException("Unexpected ZMTP command " + new String(name, StandardCharsets.US_ASCII));
+            }
+            while (command.hasRemaining()) {
+                byte[] key = new byte[command.get() & 0xFF];
+                command.get(key);
+                byte[] value = new byte[command.getInt()];
+                command.get(value);
+                properties.put(new String(key, StandardCharsets.US_ASCII), value);
+            }
+        }
+
+        static void property(ByteArrayOutputStream out, String name, byte[] value) {
+            out.write(name.length());
+            out.writeBytes(name.getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(ByteBuffer.allocate(4).putInt(value.length).array());
+            out.writeBytes(value);
+        }
+
+        /** Reads the frames of the next message, skipping any commands. */
+        List<ByteBuffer> read() throws IOException {
+            List<ByteBuffer> frames = new ArrayList<>();
+            while (true) {
+                header.clear().limit(2);
+                readFully(header);
+                int flags = header.get(0);
+                long size;
+                if ((flags & LONG) != 0) {
+                    header.limit(9);
+                    readFully(header);
+                    size = header.getLong(1);
+                } else {
+                    size = header.get(1) & 0xFF;
+                }
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Frame too large: " + size);
+                }
+                ByteBuffer body = ByteBuffer.allocate((int) size);
+                readFully(body);
+                body.flip();
+                if ((flags & COMMAND) != 0) {
+                    continue;
+                }
+                frames.add(body);
+                if ((flags & MORE) == 0) {
+                    return frames;
+                }
+            }
+        }
+
+        ByteBuffer readFrame() throws IOException {
+            header.clear().limit(2);
+            readFully(header);
+            int size = header.get(1) & 0xFF;
+            if ((header.get(0) & LONG) != 0) {
+                header.limit(9);
+                readFully(header);
+                size = (int) header.getLong(1);
+            }
+            ByteBuffer body = ByteBuffer.allocate(size);
+            readFully(body);
+            return body.flip();
+        }
+
+        /** Writes all frames of a message with one gathering write per call. */
+        synchronized void write(List<ByteBuffer> frames) throws IOException {
+            ByteBuffer[] buffers = new ByteBuffer[frames.size() * 2];
+            for (int i = 0; i < frames.size(); i++) {
+                ByteBuffer body = frames.get(i).duplicate();
+                buffers[i * 2] = header(i < frames.size() - 1 ? MORE : 0, body.remaining());
+                buffers[i * 2 + 1] = body;
+            }
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        synchronized void writeFrame(int flags, ByteBuffer body) throws IOException {
+            writeFully(header(flags, body.remaining()));
+            writeFully(body);
+        }
+
+        static ByteBuffer header(int flags, int size) {
+            if (size > 255) {
+                return ByteBuffer.allocate(9).put((byte) (flags | LONG)).putLong(size).flip();
+            }
+            return ByteBuffer.allocate(2).put((byte) flags).put((byte) size).flip();
+        }
+
+        void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Just enough JSON to read a connection file and a kernel.json.
+     */
+    static class Json {
+        final String text;
+        int pos;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> object(String text) {
+            return (Map<String, Object>) new Json(text).value();
+        }
+
+        static String quote(String value) {
+            StringBuilder result = new StringBuilder("\"");
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    result.append('\\').append(c);
+                } else if (c < 0x20) {
+                    result.append(String.format("\\u%04x", (int) c));
+                } else {
+                    result.append(c);
+                }
+            }
+            return result.append('"').toString();
+        }
+
+        Object value() {
+            skipWhitespace();
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    pos++;
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    skipWhitespace();
+                    if (text.charAt(pos) == '}') {
+                        pos++;
+                        return map;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        String key = string();
+                        skipWhitespace();
+                        expect(':');
+                        map.put(key, value());
+                        skipWhitespace();
+                        if (text.charAt(pos++) == '}') {
+                            return map;
+                        }
+                    }
+                case '[':
+                    pos++;
+                    List<Object> list = new ArrayList<>();
+                    skipWhitespace();
+                    if (text.charAt(pos) == ']') {
+                        pos++;
+                        return list;
+                    }
+                    while (true) {
+                        list.add(value());
+                        skipWhitespace();
+                        if (text.charAt(pos++) == ']') {
+                            return list;
+                        }
+                    }
+                case '"':
+                    return string();
+                default:
+                    int start = pos;
+                    while (pos < text.length() && ",}] \t\r\n".indexOf(text.charAt(pos)) < 0) {
+                        pos++;
+                    }
+                    String literal = text.substring(start, pos);
+                    switch (literal) {
+                        case "true": return Boolean.TRUE;
+                        case "false": return Boolean.FALSE;
+                        case "null": return null;
+                        default:
+                            return literal.matches("-?\\d+") ? (Number) Long.parseLong(literal) : (Number) Double.parseDouble(literal);
+                    }
+            }
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder result = new StringBuilder();
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return result.toString();
+                }
+                if (c == '\\') {
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': result.append('\n'); break;
+                        case 't': result.append('\t'); break;
+                        case 'r': result.append('\r'); break;
+                        case 'b': result.append('\b'); break;
+                        case 'f': result.append('\f'); break;
+                        case 'u':
+                            result.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: result.append(escaped);
+                    }
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+
+        void expect(char c) {
+            if (text.charAt(pos++) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + (pos - 1));
+            }
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//SOURCES kernelpool.java
+
+import static java.lang.System.err;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * Starts a kernel from a Coordinated Restore at Checkpoint image, so a booted and warmed up jvm is ready in
+ * tens of milliseconds.
+ *
+ * At install time it runs with <code>-XX:CRaCCheckpointTo</code> and <code>-Dkernelcrac.checkpoint=true</code>:
+ * it loads the kernel's main class, warms up like a pooled kernel and takes the checkpoint, before the kernel
+ * opens a single socket. kernel.json restores the image with the session's connection file as
+ * <code>-Djupyter.connection_file</code>, which CRaC sets in the restored jvm, and the kernel's main method runs
+ * with <code>{connection_file}</code> replaced. Where the image cannot be restored,
+ * <code>-XX:+CRaCIgnoreRestoreIfUnavailable</code> makes the same command start the kernel the regular way.
+ *
+ * Usage: kernelcrac main.Class [kernel arguments]
+ */
+class kernelcrac {
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            err.println("Usage: kernelcrac main.Class [kernel arguments]");
+            System.exit(2);
+        }
+        Class<?> main = Class.forName(args[0], true, ClassLoader.getSystemClassLoader());
+        String[] kernelArgs = Arrays.copyOfRange(args, 1, args.length);
+
+        if (Boolean.getBoolean("kernelcrac.checkpoint")) {
+            long start = System.nanoTime();
+            kernelpool.warmup();
+            kernelpool.log(String.format("Warmed up in %d ms, taking checkpoint", (System.nanoTime() - start) / 1_000_000));
+            checkpointRestore();
+
+            // from here on this is a kernel restored by Jupyter
+            String connectionFile = System.getProperty("jupyter.connection_file");
+            if (connectionFile == null) {
+                err.println("Restored without -Djupyter.connection_file, cannot tell which session to serve.");
+                System.exit(2);
+            }
+            for (int i = 0; i < kernelArgs.length; i++) {
+                kernelArgs[i] = kernelArgs[i].replace("{connection_file}", connectionFile);
+            }
+        }
+
+        try {
+            main.getMethod("main", String[].class).invoke(null, (Object) kernelArgs);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Takes the checkpoint, returning only in the restored jvm. Called reflectively so this compiles,
+     * and runs the kernel the regular way, on any jdk.
+     */
+    static void checkpointRestore() throws Exception {
+        try {
+            Class.forName("jdk.crac.Core").getMethod("checkpointRestore").invoke(null);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//JAVAAGENT
+//SOURCES ipcproxykernel.java
+//SOURCES kernelmetrics.java
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.management.ObjectName;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * A java agent that returns the memory of an idle kernel to the system. It watches iopub like kernel-metrics and
+ * once no cell ran for the idle period, it lowers <code>MinHeapFreeRatio</code> and <code>MaxHeapFreeRatio</code>
+ * and runs a full GC, after which G1 and the serial collector shrink the heap and uncommit what they freed. Where
+ * the jdk can (17.0.9 and newer), it also trims the native heap. The ratios are restored with the next cell, so a
+ * busy kernel sizes its heap as usual. The parallel collector sizes its heap by its own policy and keeps it.
+ *
+ * Each release is appended as one JSON line with committed heap and resident set size before and after.
+ *
+ * Options, comma separated: <code>file=</code> the JSON lines file, <code>connection=</code> the connection file,
+ * <code>idle=</code> seconds without a cell before memory is released (600).
+ *
+ * Usage: -javaagent:kernelidle.jar=file=path/to/kernel/idle.jsonl,connection={connection_file},idle=600
+ */
+class kernelidle {
+
+    /** Ratios while idle: grow only when needed, shrink to a tenth above what is live. */
+    static final String IDLE_MIN_FREE = "0";
+    static final String IDLE_MAX_FREE = "10";
+    /** How long to wait for G1, which uncommits concurrently since jdk 17, before measuring what was released. */
+    static final long SETTLE_MILLIS = 2000;
+
+    public static void premain(String options) {
+        Map<String, String> parsed = new HashMap<>();
+        if (options != null) {
+            for (String option : options.split(",")) {
+                String[] keyValue = option.split("=", 2);
+                parsed.put(keyValue[0].trim(), keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        ipcproxykernel.daemon("kernel-idle", () -> new kernelidle(parsed).run());
+    }
+
+    public static void agentmain(String options) {
+        premain(options);
+    }
+
+    final Map<String, String> options;
+    final kernelmetrics.Histogram cells = new kernelmetrics.Histogram();
+    final kernelmetrics.CellWatcher watcher = new kernelmetrics.CellWatcher(cells);
+    final HotSpotDiagnosticMXBean diagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    final String minFree = diagnostic.getVMOption("MinHeapFreeRatio").getValue();
+    final String maxFree = diagnostic.getVMOption("MaxHeapFreeRatio").getValue();
+
+    kernelidle(Map<String, String> options) {
+        this.options = options;
+    }
+
+    void run() throws IOException {
+        long idleMillis = Long.parseLong(options.getOrDefault("idle", "600")) * 1000;
+        String connectionFile = options.get("connection");
+        while (connectionFile == null || connectionFile.contains("{connection_file}")) {
+            // pooled kernels are handed their connection file long after the jvm started
+            connectionFile = System.getProperty("jupyter.connection_file");
+            if (connectionFile != null) {
+                break;
+            }
+            ipcproxykernel.sleep(50);
+        }
+        Map<String, Object> connection = ipcproxykernel.Json.object(Files.readString(Path.of(connectionFile)));
+        ipcproxykernel.daemon("kernel-idle-iopub", () -> {
+            try (var iopub = kernelmetrics.connect(connection, "iopub", "SUB")) {
+                iopub.write(List.of(ByteBuffer.wrap(new byte[] {1})));
+                while (true) {
+                    watcher.readMessage(iopub.channel);
+                }
+            }
+        });
+
+        long lastActive = System.currentTimeMillis();
+        long seen = 0;
+        boolean released = false;
+        while (true) {
+            ipcproxykernel.sleep(Math.min(1000, idleMillis));
+            long now = System.currentTimeMillis();
+            if (cells.count.get() != seen || watcher.busySince >= 0) {
+                seen = cells.count.get();
+                lastActive = now;
+                if (released) {
+                    setRatios(minFree, maxFree);
+                    released = false;
+                }
+            } else if (!released && now - lastActive >= idleMillis) {
+                release(now - lastActive);
+                released = true;
+            }
+        }
+    }
+
+    void release(long idleFor) {
+        long heapBefore = heapCommitted();
+        long rssBefore = residentSetSize();
+        long start = System.nanoTime();
+        setRatios(IDLE_MIN_FREE, IDLE_MAX_FREE);
+        System.gc();
+        trimNativeHeap();
+        long gcMillis = (System.nanoTime() - start) / 1_000_000;
+        ipcproxykernel.sleep(SETTLE_MILLIS);
+        long heapAfter = heapCommitted();
+        long rssAfter = residentSetSize();
+
+        String collectors = ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .map(GarbageCollectorMXBean::getName).collect(Collectors.joining(", "));
+        String record = String.format(Locale.ROOT, "{\"timestamp\": \"%s\", \"pid\": %d, \"idle_ms\": %d, \"gc_ms\": %d, \"collectors\": %s, "
+                        + "\"heap_committed_before\": %d, \"heap_committed_after\": %d, \"rss_before\": %d, \"rss_after\": %d, \"reclaimed\": %d}",
+                Instant.now(), ProcessHandle.current().pid(), idleFor, gcMillis, ipcproxykernel.Json.quote(collectors),
+                heapBefore, heapAfter, rssBefore, rssAfter,
+                rssBefore >= 0 && rssAfter >= 0 ? rssBefore - rssAfter : heapBefore - heapAfter);
+        try (FileChannel channel = FileChannel.open(Path.of(options.getOrDefault("file", "idle.jsonl")),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("Could not log released memory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets both ratios in the order that keeps the minimum at or below the maximum.
+     */
+    void setRatios(String min, String max) {
+        try {
+            if (Integer.parseInt(min) < Integer.parseInt(diagnostic.getVMOption("MinHeapFreeRatio").getValue())) {
+                diagnostic.setVMOption("MinHeapFreeRatio", min);
+                diagnostic.setVMOption("MaxHeapFreeRatio", max);
+            } else {
+                diagnostic.setVMOption("MaxHeapFreeRatio", max);
+                diagnostic.setVMOption("MinHeapFreeRatio", min);
+            }
+        } catch (RuntimeException e) {
+            // a collector that ignores the ratios still gets its full GC
+        }
+    }
+
+    /**
+     * Returns freed malloc memory, i.e. of the compilers, to the system with <code>System.trim_native_heap</code>.
+     */
+    static void trimNativeHeap() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                    "systemTrimNativeHeap", new Object[] {null}, new String[] {String[].class.getName()});
+        } catch (Exception e) {
+            // not available before jdk 17.0.9 or outside glibc
+        }
+    }
+
+    static long heapCommitted() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+    }
+
+    /**
+     * VmRSS of this process, or -1 where /proc is not available.
+     */
+    static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+}
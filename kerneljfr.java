@@ -0,0 +1,79 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//JAVAAGENT
+//SOURCES ipcproxykernel.java
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A java agent that bounds the Flight Recorder recordings of a kernel installed with <code>--jfr</code>. Every
+ * session dumps its own recording on exit and nothing else removes them, so when a kernel starts this deletes the
+ * recordings older than the maximum age and, from the newest on, those beyond the maximum size of all of them together.
+ * The session that starts has not written its recording yet, the ones still running write theirs when they exit.
+ *
+ * Options, comma separated: <code>dir=</code> the recordings directory, <code>maxage=</code> days a recording is kept (14),
+ * <code>maxsize=</code> megabytes all recordings may take together (1024).
+ *
+ * Usage: -javaagent:kerneljfr.jar=dir=path/to/kernel/jfr,maxage=14,maxsize=1024
+ */
+class kerneljfr {
+
+    public static void premain(String options) {
+        Map<String, String> parsed = new HashMap<>();
+        if (options != null) {
+            for (String option : options.split(",")) {
+                String[] keyValue = option.split("=", 2);
+                parsed.put(keyValue[0].trim(), keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        ipcproxykernel.daemon("kernel-jfr", () -> prune(Path.of(parsed.getOrDefault("dir", "jfr")),
+                Duration.ofDays(Long.parseLong(parsed.getOrDefault("maxage", "14"))),
+                Long.parseLong(parsed.getOrDefault("maxsize", "1024")) * 1024 * 1024));
+    }
+
+    public static void agentmain(String options) {
+        premain(options);
+    }
+
+    /**
+     * Deletes the recordings in <code>dir</code> last written before <code>maxAge</code> ago, and those that together
+     * with all newer ones take more than <code>maxBytes</code>.
+     */
+    static void prune(Path dir, Duration maxAge, long maxBytes) throws IOException {
+        List<Path> recordings;
+        try (var files = Files.list(dir)) {
+            recordings = files.filter(file -> file.toString().endsWith(".jfr"))
+                    .sorted(Comparator.comparing(kerneljfr::lastModified).reversed())
+                    .collect(Collectors.toList());
+        }
+        Instant oldest = Instant.now().minus(maxAge);
+        long total = 0;
+        for (Path recording : recordings) {
+            try {
+                total += Files.size(recording);
+                if (lastModified(recording).isBefore(oldest) || total > maxBytes) {
+                    Files.deleteIfExists(recording);
+                }
+            } catch (IOException e) {
+                // pruned by a session that started at the same time
+            }
+        }
+    }
+
+    static Instant lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            return Instant.EPOCH;
+        }
+    }
+}
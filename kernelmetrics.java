@@ -0,0 +1,441 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//JAVAAGENT
+//SOURCES ipcproxykernel.java
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A java agent that reports the kernel jvm's heap, GC, thread and CPU metrics, how long the kernel took
+ * to answer its first heartbeat and a latency histogram of executed cells.
+ *
+ * Cell latency is observed from the outside, like a frontend would: the agent subscribes to the kernel's
+ * iopub channel and times the busy and idle status of each execute_request. Frames are read into one reused
+ * buffer and recorded into fixed histogram buckets, so nothing is allocated per message.
+ *
+ * Options, comma separated: <code>dir=</code> where <code>metrics-&lt;pid&gt;.jsonl</code> is written,
+ * <code>connection=</code> the connection file, <code>interval=</code> seconds between snapshots (10),
+ * <code>port=</code> to also serve the latest snapshot on http://127.0.0.1:port/metrics (0 picks a free port,
+ * written to <code>metrics-&lt;pid&gt;.port</code>) and <code>max-bytes=</code> after which the file is rotated.
+ *
+ * Usage: -javaagent:kernelmetrics.jar=dir=path/to/kernel/metrics,connection={connection_file}
+ * Running it as a program benchmarks the per message and per cell overhead.
+ */
+class kernelmetrics {
+
+    static final byte[] DELIMITER = "<IDS|MSG>".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] STATUS = "\"status\"".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] EXECUTE_REQUEST = "\"execute_request\"".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BUSY = "\"busy\"".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] IDLE = "\"idle\"".getBytes(StandardCharsets.US_ASCII);
+
+    public static void premain(String options) {
+        Map<String, String> parsed = new HashMap<>();
+        if (options != null) {
+            for (String option : options.split(",")) {
+                String[] keyValue = option.split("=", 2);
+                parsed.put(keyValue[0].trim(), keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        // everything happens in the background, the agent must not delay the kernel's startup
+        ipcproxykernel.daemon("kernel-metrics", () -> new kernelmetrics(parsed).run());
+    }
+
+    public static void agentmain(String options) {
+        premain(options);
+    }
+
+    final Map<String, String> options;
+    final Histogram cells = new Histogram();
+    final CellWatcher watcher = new CellWatcher(cells);
+    final long pid = ProcessHandle.current().pid();
+    volatile long readyMillis = -1;
+    volatile String latest = "{}";
+
+    kernelmetrics(Map<String, String> options) {
+        this.options = options;
+    }
+
+    void run() throws IOException {
+        Path dir = Path.of(options.getOrDefault("dir", "."));
+        Files.createDirectories(dir);
+        Path file = dir.resolve("metrics-" + pid + ".jsonl");
+        long interval = Long.parseLong(options.getOrDefault("interval", "10")) * 1000;
+        long maxBytes = Long.parseLong(options.getOrDefault("max-bytes", String.valueOf(10 * 1024 * 1024)));
+
+        if (options.containsKey("port")) {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", Integer.parseInt(options.get("port"))), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = latest.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            });
+            server.start();
+            Path portFile = dir.resolve("metrics-" + pid + ".port");
+            Files.writeString(portFile, String.valueOf(server.getAddress().getPort()));
+            portFile.toFile().deleteOnExit();
+        }
+
+        ipcproxykernel.daemon("kernel-metrics-iopub", this::watch);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                append(file, maxBytes);
+            } catch (IOException e) {
+                // exiting anyway
+            }
+        }));
+
+        while (true) {
+            append(file, maxBytes);
+            ipcproxykernel.sleep(interval);
+        }
+    }
+
+    /**
+     * Waits for the connection file, then times the first heartbeat and watches iopub for the rest of the session.
+     */
+    void watch() throws IOException {
+        long since = ManagementFactory.getRuntimeMXBean().getStartTime();
+        String connectionFile = options.get("connection");
+        while (connectionFile == null || connectionFile.contains("{connection_file}")) {
+            // pooled kernels are handed their connection file long after the jvm started
+            connectionFile = System.getProperty("jupyter.connection_file");
+            if (connectionFile != null) {
+                since = System.currentTimeMillis();
+                break;
+            }
+            ipcproxykernel.sleep(50);
+        }
+
+        Map<String, Object> connection = ipcproxykernel.Json.object(Files.readString(Path.of(connectionFile)));
+        try (var hb = connect(connection, "hb", "REQ")) {
+            hb.write(List.of(ByteBuffer.allocate(0), ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII))));
+            hb.read();
+            readyMillis = System.currentTimeMillis() - since;
+        }
+
+        try (var iopub = connect(connection, "iopub", "SUB")) {
+            iopub.write(List.of(ByteBuffer.wrap(new byte[] {1})));
+            while (true) {
+                watcher.readMessage(iopub.channel);
+            }
+        }
+    }
+
+    static ipcproxykernel.Zmtp connect(Map<String, Object> connection, String channel, String socketType) throws IOException {
+        String ip = String.valueOf(connection.get("ip"));
+        int port = ((Number) connection.get(channel + "_port")).intValue();
+        SocketAddress address = "ipc".equals(connection.get("transport"))
+                ? UnixDomainSocketAddress.of(ip + "-" + port)
+                : new InetSocketAddress(ip.equals("0.0.0.0") || ip.equals("*") ? "127.0.0.1" : ip, port);
+        while (true) {
+            try {
+                var zmtp = new ipcproxykernel.Zmtp(SocketChannel.open(address));
+                zmtp.handshake(socketType, false);
+                return zmtp;
+            } catch (IOException e) {
+                ipcproxykernel.sleep(20);
+            }
+        }
+    }
+
+    void append(Path file, long maxBytes) throws IOException {
+        latest = snapshot();
+        if (Files.exists(file) && Files.size(file) > maxBytes) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap((latest + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    String snapshot() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        var threads = ManagementFactory.getThreadMXBean();
+        long cpuMillis = -1;
+        double cpuLoad = -1;
+        var os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpuMillis = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1_000_000;
+            cpuLoad = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        return String.format(Locale.ROOT, "{\"timestamp\": %d, \"pid\": %d, \"uptime_ms\": %d, \"ready_ms\": %d, "
+                        + "\"heap_used\": %d, \"heap_committed\": %d, \"heap_max\": %d, \"non_heap_used\": %d, "
+                        + "\"gc_count\": %d, \"gc_time_ms\": %d, \"threads\": %d, \"peak_threads\": %d, "
+                        + "\"cpu_time_ms\": %d, \"cpu_load\": %.3f, \"cells\": %s}",
+                System.currentTimeMillis(), pid, ManagementFactory.getRuntimeMXBean().getUptime(), readyMillis,
+                heap.getUsed(), heap.getCommitted(), heap.getMax(), nonHeap.getUsed(),
+                gcCount, gcMillis, threads.getThreadCount(), threads.getPeakThreadCount(),
+                cpuMillis, cpuLoad, cells.toJson());
+    }
+
+    /**
+     * Latencies in power of two microsecond buckets, i.e. bucket 10 counts latencies from 512us to 1ms.
+     */
+    static final class Histogram {
+        static final int BUCKETS = 40;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        /** Upper bound of the bucket the quantile falls in, in microseconds. */
+        long quantile(double quantile) {
+            long total = count.get();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (total > 0 && seen >= Math.ceil(quantile * total)) {
+                    return Math.min(1L << i, maxMicros.get());
+                }
+            }
+            return 0;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append(String.format(Locale.ROOT, "{\"count\": %d, \"mean_ms\": %.3f, \"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f, \"buckets_us\": {",
+                    count.get(), count.get() == 0 ? 0.0 : totalMicros.get() / 1000.0 / count.get(),
+                    quantile(0.5) / 1000.0, quantile(0.9) / 1000.0, quantile(0.99) / 1000.0, maxMicros.get() / 1000.0));
+            String separator = "";
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = buckets.get(i);
+                if (n > 0) {
+                    json.append(separator).append('"').append(1L << i).append("\": ").append(n);
+                    separator = ", ";
+                }
+            }
+            return json.append("}}").toString();
+        }
+    }
+
+    /**
+     * Reads iopub messages frame by frame and records the time between the busy and idle status of each execute_request.
+     */
+    static final class CellWatcher {
+        final Histogram histogram;
+        final ByteBuffer header = ByteBuffer.allocate(9);
+        final ByteBuffer frame = ByteBuffer.allocate(16 * 1024);
+        volatile long busySince = -1;
+
+        CellWatcher(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        void readMessage(ReadableByteChannel channel) throws IOException {
+            int index = -1; // frames after the delimiter: signature, header, parent header, metadata, content, buffers
+            boolean status = false;
+            boolean execute = false;
+            while (true) {
+                header.clear().limit(2);
+                readFully(channel, header);
+                int flags = header.get(0);
+                long size = header.get(1) & 0xFF;
+                if ((flags & ipcproxykernel.Zmtp.LONG) != 0) {
+                    header.limit(9);
+                    readFully(channel, header);
+                    size = header.getLong(1);
+                }
+                boolean complete = readFrame(channel, size);
+                if ((flags & ipcproxykernel.Zmtp.COMMAND) != 0) {
+                    continue;
+                }
+                if (index < 0) {
+                    if (complete && equals(frame, DELIMITER)) {
+                        index = 0;
+                    }
+                } else {
+                    index++;
+                    if (index == 2) {
+                        status = complete && contains(frame, STATUS);
+                    } else if (index == 3) {
+                        execute = complete && contains(frame, EXECUTE_REQUEST);
+                    } else if (index == 5 && status && execute && complete) {
+                        if (contains(frame, BUSY)) {
+                            busySince = System.nanoTime();
+                        } else if (contains(frame, IDLE) && busySince >= 0) {
+                            histogram.record(System.nanoTime() - busySince);
+                            busySince = -1;
+                        }
+                    }
+                }
+                if ((flags & ipcproxykernel.Zmtp.MORE) == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads a frame into the reused buffer, or skips it if it does not fit. Status messages always fit.
+         * @return false if the frame was skipped
+         */
+        boolean readFrame(ReadableByteChannel channel, long size) throws IOException {
+            if (size <= frame.capacity()) {
+                frame.clear().limit((int) size);
+                readFully(channel, frame);
+                frame.flip();
+                return true;
+            }
+            for (long remaining = size; remaining > 0; remaining -= frame.limit()) {
+                frame.clear().limit((int) Math.min(frame.capacity(), remaining));
+                readFully(channel, frame);
+            }
+            frame.clear().limit(0);
+            return false;
+        }
+
+        static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        static boolean equals(ByteBuffer buffer, byte[] bytes) {
+            if (buffer.remaining() != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(buffer.position() + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean contains(ByteBuffer buffer, byte[] bytes) {
+            int end = buffer.limit() - bytes.length;
+            outer:
+            for (int start = buffer.position(); start <= end; start++) {
+                for (int i = 0; i < bytes.length; i++) {
+                    if (buffer.get(start + i) != bytes[i]) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Measures the cost of recording a cell and of reading an iopub message, in time and allocated bytes.
+     */
+    public static void main(String... args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        Histogram histogram = new Histogram();
+        for (int round = 0; round < 3; round++) {
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                histogram.record(i * 997L);
+            }
+            long nanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            System.out.printf("histogram.record  %8.1f ns/op %8.3f bytes/op%n", (double) nanos / iterations, (double) allocated / iterations);
+        }
+
+        byte[] busy = message("{\"execution_state\": \"busy\"}");
+        byte[] output = message("{\"name\": \"stdout\", \"text\": \"" + "x".repeat(2000) + "\"}");
+        byte[] idle = message("{\"execution_state\": \"idle\"}");
+        ByteBuffer stream = ByteBuffer.allocate(busy.length + output.length + idle.length).put(busy).put(output).put(idle).flip();
+        ReadableByteChannel repeating = new ReadableByteChannel() {
+            public int read(ByteBuffer dst) {
+                int n = 0;
+                while (dst.hasRemaining()) {
+                    if (!stream.hasRemaining()) {
+                        stream.rewind();
+                    }
+                    int chunk = Math.min(dst.remaining(), stream.remaining());
+                    dst.put(stream.slice().limit(chunk));
+                    stream.position(stream.position() + chunk);
+                    n += chunk;
+                }
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+
+        CellWatcher watcher = new CellWatcher(new Histogram());
+        int messages = iterations / 4 * 3;
+        for (int round = 0; round < 3; round++) {
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                watcher.readMessage(repeating);
+            }
+            long nanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            System.out.printf("iopub message     %8.1f ns/op %8.3f bytes/op%n", (double) nanos / messages, (double) allocated / messages);
+        }
+        System.out.println("cells recorded: " + watcher.histogram.count.get());
+    }
+
+    static byte[] message(String content) {
+        String header = "{\"msg_id\": \"1\", \"session\": \"s\", \"username\": \"u\", \"msg_type\": \""
+                + (content.contains("execution_state") ? "status" : "stream") + "\", \"version\": \"5.3\"}";
+        String parent = "{\"msg_id\": \"0\", \"session\": \"s\", \"username\": \"u\", \"msg_type\": \"execute_request\", \"version\": \"5.3\"}";
+        var out = new ByteArrayOutputStream();
+        List<String> frames = List.of("kernel.status", "<IDS|MSG>", "0".repeat(64), header, parent, "{}", content);
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] body = frames.get(i).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frameHeader = ipcproxykernel.Zmtp.header(i < frames.size() - 1 ? ipcproxykernel.Zmtp.MORE : 0, body.length);
+            out.write(frameHeader.array(), 0, frameHeader.limit());
+            out.writeBytes(body);
+        }
+        return out.toByteArray();
+    }
+}
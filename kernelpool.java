@@ -0,0 +1,587 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+
+import static java.lang.System.err;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps kernel JVMs booted and warmed up, so a notebook gets a kernel as soon as it asks for one.
+ *
+ * kernel.json runs the <code>client</code>, which hands the connection file to an idle pooled JVM and
+ * then stands in for it until it exits, with its exit status. The worker runs under the daemon, not the
+ * client, so it exits when the client does, also when Jupyter kills the client's process group and no
+ * shutdown hook runs. The first client starts the <code>daemon</code>, which keeps up
+ * to <code>size</code> <code>worker</code> JVMs waiting, adapts how many to the recent request rate
+ * and reaps idle ones when the machine runs low on memory. Without a daemon or an idle worker the
+ * client starts the kernel the regular way.
+ *
+ * Usage: kernelpool client|daemon|worker path/to/pool.properties [{connection_file}]
+ */
+class kernelpool {
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 2 || args[0].equals("client") && args.length < 3) {
+            err.println("Usage: kernelpool client|daemon|worker path/to/pool.properties [{connection_file}]");
+            System.exit(2);
+        }
+        kernelpool pool = new kernelpool(Path.of(args[1]).toAbsolutePath());
+        switch (args[0]) {
+            case "client":
+                System.exit(pool.client(Path.of(args[2]).toAbsolutePath()));
+                break;
+            case "daemon":
+                pool.daemon();
+                break;
+            case "worker":
+                pool.worker();
+                break;
+            default:
+                err.println("Unknown mode " + args[0]);
+                System.exit(2);
+        }
+    }
+
+    final Path config;
+    final Properties properties = new Properties();
+    final Path socket;
+
+    kernelpool(Path config) throws IOException {
+        this.config = config;
+        try (Reader reader = Files.newBufferedReader(config)) {
+            properties.load(reader);
+        }
+        // unix socket paths are limited to ~100 characters, the kernel dir can be longer
+        socket = runtimeDir().resolve("kernelpool-" + hash(config.toString()) + ".sock");
+    }
+
+    /**
+     * Where the socket goes: <code>$XDG_RUNTIME_DIR</code>, or a directory of this user's in the shared temp dir.
+     * Anyone can create files in the temp dir, so the socket must not be where another user could have put theirs.
+     */
+    static Path runtimeDir() {
+        String xdg = System.getenv("XDG_RUNTIME_DIR");
+        if (xdg != null && !xdg.isEmpty() && Files.isDirectory(Path.of(xdg))) {
+            return Path.of(xdg);
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"), "kernelpool-" + System.getProperty("user.name"));
+    }
+
+    /**
+     * Creates the socket's directory readable by this user only, and fails if it or the socket is someone else's.
+     */
+    void checkPrivate() throws IOException {
+        Path dir = socket.getParent();
+        if (Files.getFileAttributeView(dir.getParent(), PosixFileAttributeView.class) == null) {
+            return; // windows, where the temp dir is per user
+        }
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (FileAlreadyExistsException e) {
+            // made by an earlier client, checked below
+        }
+        UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        var attributes = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory() || !attributes.owner().equals(user)
+                || attributes.permissions().stream().anyMatch(permission -> !permission.name().startsWith("OWNER_"))) {
+            throw new IOException(dir + " must be a directory only " + user.getName() + " can access");
+        }
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS) && !Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS).equals(user)) {
+            throw new IOException(socket + " is not " + user.getName() + "'s");
+        }
+    }
+
+    List<String> list(String prefix) {
+        var result = new ArrayList<String>();
+        for (int i = 0; properties.containsKey(prefix + "." + i); i++) {
+            result.add(properties.getProperty(prefix + "." + i));
+        }
+        return result;
+    }
+
+    int intProperty(String key, int defaultValue) {
+        return Integer.parseInt(properties.getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    // --- client ---
+
+    int client(Path connectionFile) throws Exception {
+        Optional<SocketChannel> daemon = Optional.empty();
+        try {
+            daemon = connect();
+            if (daemon.isEmpty()) {
+                startDaemon();
+            }
+        } catch (IOException e) {
+            log("Not using the pool: " + e.getMessage());
+        }
+        if (daemon.isPresent()) {
+            try (SocketChannel channel = daemon.get()) {
+                Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                out.write("ACQUIRE " + ProcessHandle.current().pid() + " " + connectionFile + "\n");
+                out.write("CONTEXT " + context() + "\n");
+                out.flush();
+                BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+                String reply = in.readLine();
+                if (reply != null && !reply.equals("NONE")) {
+                    long pid = Long.parseLong(reply);
+                    ProcessHandle.of(pid).ifPresent(kernel -> Runtime.getRuntime().addShutdownHook(new Thread(kernel::destroy)));
+                    // the worker is the daemon's child, only the daemon learns how it exited
+                    String exit = in.readLine();
+                    if (exit != null && exit.startsWith("EXIT ")) {
+                        return Integer.parseInt(exit.substring("EXIT ".length()));
+                    }
+                    log("Lost the daemon, the exit status of kernel " + pid + " is unknown");
+                    ProcessHandle.of(pid).ifPresent(kernel -> kernel.onExit().join());
+                    return 1;
+                }
+            } catch (IOException e) {
+                log("Pool unavailable, starting the kernel directly: " + e);
+            }
+        }
+
+        // cold start, exactly what kernel.json would run without the pool
+        List<String> argv = new ArrayList<>();
+        for (String arg : list("fallback")) {
+            argv.add(arg.replace("{connection_file}", connectionFile.toString()));
+        }
+        Process kernel = new ProcessBuilder(argv).inheritIO().start();
+        Runtime.getRuntime().addShutdownHook(new Thread(kernel::destroy));
+        return kernel.waitFor();
+    }
+
+    Optional<SocketChannel> connect() throws IOException {
+        checkPrivate();
+        try {
+            return Optional.of(SocketChannel.open(UnixDomainSocketAddress.of(socket)));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    void startDaemon() throws IOException {
+        List<String> command = new ArrayList<>();
+        if (Files.isExecutable(Path.of("/usr/bin/setsid"))) {
+            // own session, so the daemon survives jupyter killing the kernel's process group
+            command.add("/usr/bin/setsid");
+        }
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(List.of("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-Xmx32m", "-cp", System.getProperty("java.class.path"),
+                "kernelpool", "daemon", config.toString()));
+        Path log = config.resolveSibling("pool.log");
+        new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                .redirectInput(ProcessBuilder.Redirect.from(new java.io.File(isWindows() ? "NUL" : "/dev/null")))
+                .start();
+    }
+
+    /**
+     * Variables Jupyter sets per notebook that no jvm kernel reads, so they do not keep a worker from serving another notebook.
+     */
+    static final Set<String> SESSION_ENV = Set.of("JPY_SESSION_NAME");
+
+    /**
+     * The working directory and environment of this process, as one line.
+     */
+    static String context() {
+        var entries = new TreeMap<String, String>();
+        System.getenv().forEach((key, value) -> {
+            if (!SESSION_ENV.contains(key)) {
+                entries.put("env." + key, value);
+            }
+        });
+        var context = new StringBuilder("cwd=").append(Path.of("").toAbsolutePath());
+        entries.forEach((key, value) -> context.append('\0').append(key).append('=').append(value));
+        return Base64.getEncoder().encodeToString(context.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // --- daemon ---
+
+    final Deque<Worker> idle = new ConcurrentLinkedDeque<>();
+    final Deque<Long> requests = new ConcurrentLinkedDeque<>();
+    /** Workers started that did not register yet. */
+    final Set<Long> starting = ConcurrentHashMap.newKeySet();
+    /** Every worker started and still running, by pid. */
+    final Map<Long, Process> workers = new ConcurrentHashMap<>();
+    /** Workers handed out whose kernel still runs, the daemon reports how they exit. */
+    final Set<Long> serving = ConcurrentHashMap.newKeySet();
+    volatile long lastRequest = System.currentTimeMillis();
+    /** What workers are started with, that of the latest client. */
+    volatile String context = context();
+
+    static class Worker {
+        final long pid;
+        final SocketChannel channel;
+        final String context;
+        final long since = System.currentTimeMillis();
+
+        Worker(long pid, SocketChannel channel, String context) {
+            this.pid = pid;
+            this.channel = channel;
+            this.context = context;
+        }
+
+        boolean alive() {
+            return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        }
+
+        void kill() {
+            ProcessHandle.of(pid).ifPresent(ProcessHandle::destroy);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    void daemon() throws Exception {
+        checkPrivate();
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            if (Files.exists(socket) && !isStale()) {
+                log("Another daemon is serving " + socket);
+                return;
+            }
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            idle.forEach(Worker::kill);
+            socket.toFile().delete();
+        }));
+        log("Serving " + config + " on " + socket);
+
+        Thread maintainer = new Thread(() -> {
+            while (true) {
+                try {
+                    if (maintain()) {
+                        System.exit(0);
+                    }
+                    TimeUnit.SECONDS.sleep(2);
+                } catch (Exception e) {
+                    log("Maintenance failed: " + e);
+                }
+            }
+        }, "maintain");
+        maintainer.setDaemon(true);
+        maintainer.start();
+
+        while (true) {
+            SocketChannel channel = server.accept();
+            Thread handler = new Thread(() -> handle(channel), "connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    boolean isStale() {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    void handle(SocketChannel channel) {
+        try {
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line = in.readLine();
+            String context = line == null ? null : Optional.ofNullable(in.readLine()).orElse("").replaceFirst("^CONTEXT ", "");
+            if (line == null) {
+                channel.close();
+            } else if (line.startsWith("WORKER ")) {
+                long pid = Long.parseLong(line.substring("WORKER ".length()));
+                synchronized (this) {
+                    // after spawnWorker added it, even if the worker was quick
+                    starting.remove(pid);
+                }
+                idle.addLast(new Worker(pid, channel, context));
+            } else if (line.startsWith("ACQUIRE ")) {
+                lastRequest = System.currentTimeMillis();
+                requests.addLast(lastRequest);
+                if (!context.equals(this.context)) {
+                    log("Client in another directory or environment, starting workers for it from now on");
+                    this.context = context;
+                }
+                String reply = "NONE";
+                Process process = null;
+                for (Worker worker : idle) {
+                    process = workers.get(worker.pid);
+                    if (!worker.context.equals(context) || !idle.remove(worker) || process == null || !process.isAlive()) {
+                        continue;
+                    }
+                    try {
+                        // the client's pid and the connection file
+                        Writer toWorker = Channels.newWriter(worker.channel, StandardCharsets.UTF_8);
+                        toWorker.write(line.substring("ACQUIRE ".length()) + "\n");
+                        toWorker.flush();
+                        reply = String.valueOf(worker.pid);
+                        serving.add(worker.pid);
+                        break;
+                    } catch (IOException e) {
+                        worker.kill();
+                    }
+                }
+                Writer toClient = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                toClient.write(reply + "\n");
+                toClient.flush();
+                if (reply.equals("NONE")) {
+                    channel.close();
+                } else {
+                    process.onExit().thenAccept(exited -> {
+                        try (channel) {
+                            toClient.write("EXIT " + exited.exitValue() + "\n");
+                            toClient.flush();
+                        } catch (IOException e) {
+                            // the client is gone, the worker exited because of that
+                        }
+                    });
+                }
+                log("Handed out " + reply + ", " + idle.size() + " idle");
+                maintain();
+            }
+        } catch (IOException e) {
+            log("Connection failed: " + e);
+        }
+    }
+
+    /**
+     * Grows or shrinks the pool towards the number of kernels requested in the recent window.
+     * @return true if the daemon has been unused long enough to exit
+     */
+    synchronized boolean maintain() throws IOException {
+        long now = System.currentTimeMillis();
+        long window = TimeUnit.SECONDS.toMillis(intProperty("window.seconds", 600));
+        while (!requests.isEmpty() && requests.peekFirst() < now - window) {
+            requests.pollFirst();
+        }
+        idle.removeIf(worker -> !worker.alive());
+        for (Worker worker : idle) {
+            if (!worker.context.equals(context) && idle.remove(worker)) {
+                log("Stopping worker " + worker.pid + ", started for another directory or environment");
+                worker.kill();
+            }
+        }
+
+        int max = intProperty("size", 1);
+        int target = Math.max(1, Math.min(max, requests.size()));
+
+        if (memoryPressure()) {
+            Worker worker;
+            while ((worker = idle.pollLast()) != null) {
+                log("Memory pressure, reaping idle worker " + worker.pid);
+                worker.kill();
+            }
+            return false;
+        }
+
+        if (serving.isEmpty() && now - lastRequest > TimeUnit.SECONDS.toMillis(intProperty("idle.exit.seconds", 3600))) {
+            log("No requests for a while, shutting down");
+            return true;
+        }
+
+        while (idle.size() > target) {
+            Worker worker = idle.pollLast();
+            log("Shrinking pool to " + target + ", stopping " + worker.pid);
+            worker.kill();
+        }
+        while (idle.size() + starting.size() < target) {
+            spawnWorker();
+        }
+        return false;
+    }
+
+    void spawnWorker() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(properties.getProperty("java"));
+        command.add("@" + properties.getProperty("worker.args"));
+        command.add("worker");
+        command.add(config.toString());
+        var builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(config.resolveSibling("pool.log").toFile()));
+        String[] entries = new String(Base64.getDecoder().decode(context), StandardCharsets.UTF_8).split("\0");
+        builder.directory(new java.io.File(entries[0].substring("cwd=".length())));
+        builder.environment().clear();
+        for (int i = 1; i < entries.length; i++) {
+            String[] keyValue = entries[i].substring("env.".length()).split("=", 2);
+            builder.environment().put(keyValue[0], keyValue[1]);
+        }
+        Process process = builder.start();
+        starting.add(process.pid());
+        workers.put(process.pid(), process);
+        process.onExit().thenAccept(p -> {
+            workers.remove(p.pid());
+            if (starting.remove(p.pid())) {
+                log("Worker " + p.pid() + " exited with " + p.exitValue() + " before it registered");
+            } else if (serving.remove(p.pid())) {
+                log("Kernel " + p.pid() + " exited with " + p.exitValue());
+            } else if (idle.stream().noneMatch(w -> w.pid == p.pid()) && p.exitValue() != 0) {
+                log("Worker " + p.pid() + " exited with " + p.exitValue() + " before being used");
+            }
+        });
+        log("Started worker " + process.pid());
+    }
+
+    /**
+     * Linux only: the machine is considered under pressure when available memory drops
+     * below <code>memory.min.available.percent</code> of the total.
+     */
+    boolean memoryPressure() {
+        Path meminfo = Path.of("/proc/meminfo");
+        if (!Files.exists(meminfo)) {
+            return false;
+        }
+        try {
+            long total = 0;
+            long available = 0;
+            for (String line : Files.readAllLines(meminfo)) {
+                if (line.startsWith("MemTotal:")) {
+                    total = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                } else if (line.startsWith("MemAvailable:")) {
+                    available = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return total > 0 && available * 100 / total < intProperty("memory.min.available.percent", 10);
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // --- worker ---
+
+    void worker() throws Exception {
+        String mainClass = properties.getProperty("main");
+        long start = System.nanoTime();
+        Class<?> main = Class.forName(mainClass, true, ClassLoader.getSystemClassLoader());
+        warmup();
+        log(String.format("Worker %d warmed up in %d ms", ProcessHandle.current().pid(), (System.nanoTime() - start) / 1_000_000));
+
+        String acquired;
+        checkPrivate();
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+            out.write("WORKER " + ProcessHandle.current().pid() + "\n");
+            out.write("CONTEXT " + context() + "\n");
+            out.flush();
+            acquired = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8)).readLine();
+        }
+        if (acquired == null) {
+            return; // the daemon went away or reaped us
+        }
+        String[] clientAndFile = acquired.split(" ", 2);
+        exitWith(Long.parseLong(clientAndFile[0]));
+        String connectionFile = clientAndFile[1];
+
+        // lets agents started with the worker, like kernel-metrics, find the session's connection file
+        System.setProperty("jupyter.connection_file", connectionFile);
+        List<String> args = new ArrayList<>();
+        for (String arg : list("arg")) {
+            args.add(arg.replace("{connection_file}", connectionFile));
+        }
+        try {
+            main.getMethod("main", String[].class).invoke(null, (Object) args.toArray(new String[0]));
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Exits once the client is gone, Jupyter stops a kernel by killing the client.
+     * A kernel whose shutdown hangs is halted after a while, it would hold on to the session's ports.
+     */
+    static void exitWith(long client) {
+        ProcessHandle.of(client).map(ProcessHandle::onExit).orElse(CompletableFuture.completedFuture(null)).thenRun(() -> {
+            log("Client " + client + " exited, stopping worker " + ProcessHandle.current().pid());
+            Thread halt = new Thread(() -> {
+                try {
+                    TimeUnit.SECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    // halt now
+                }
+                Runtime.getRuntime().halt(1);
+            }, "halt");
+            halt.setDaemon(true);
+            halt.start();
+            System.exit(1);
+        });
+    }
+
+    /**
+     * Most JVM kernels are built on JShell, so compile and run a snippet to get javac and JShell loaded and jitted.
+     */
+    static void warmup() {
+        if (ModuleLayer.boot().findModule("jdk.jshell").isEmpty()) {
+            return;
+        }
+        // the local execution engine installs a default handler that swallows uncaught exceptions, the kernel's included
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        try (jdk.jshell.JShell shell = jdk.jshell.JShell.builder().executionEngine("local").build()) {
+            for (String snippet : List.of("import java.util.*;", "var list = new ArrayList<Integer>();",
+                    "for (int i = 0; i < 1000; i++) list.add(i * i);", "list.stream().mapToInt(Integer::intValue).sum()")) {
+                shell.eval(snippet);
+            }
+        } catch (RuntimeException e) {
+            log("Warm up failed: " + e);
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    static void log(String message) {
+        err.println(java.time.LocalDateTime.now() + " " + message);
+    }
+
+    static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("win");
+    }
+
+    static String hash(String value) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.substring(0, 12);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
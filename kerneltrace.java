@@ -0,0 +1,229 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//JAVAAGENT
+//SOURCES ipcproxykernel.java
+//SOURCES kernelwarmup.java
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.ProtectionDomain;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarFile;
+
+/**
+ * A java agent that appends one JSON line per kernel launch with when each startup phase ended: the launcher
+ * (jbang) started, the jvm started, the main class was loaded, the kernel accepted connections on its shell port
+ * and it answered kernel_info. Also recorded are the jdk, the classpath size, how many of its jars and whether
+ * the jdk were fetched during this launch rather than found in a cache, and whether class data sharing was used.
+ *
+ * jbang execs the kernel jvm in the process it started in, so the launcher start is the start of this process,
+ * or of the parent where jbang runs java as a child. Pooled kernels start when they are handed their connection
+ * file, their launcher and boot phases are not part of the launch and left out.
+ *
+ * Options, comma separated: <code>file=</code> the JSON lines file, <code>connection=</code> the connection file.
+ *
+ * Usage: -javaagent:kerneltrace.jar=file=path/to/kernel/startup.jsonl,connection={connection_file}
+ */
+class kerneltrace {
+
+    static final long MAX_BYTES = 5 * 1024 * 1024;
+    /** USER_HZ, which Linux fixes at 100 for what it reports to user space. */
+    static final long CLOCK_TICKS = 100;
+
+    final Map<String, String> options;
+    final long agentStart = System.currentTimeMillis();
+    final AtomicBoolean written = new AtomicBoolean();
+    volatile long mainLoaded = -1;
+    volatile long handedOff = -1;
+    volatile long bound = -1;
+    volatile long ready = -1;
+
+    public static void premain(String options, Instrumentation instrumentation) {
+        Map<String, String> parsed = new HashMap<>();
+        if (options != null) {
+            for (String option : options.split(",")) {
+                String[] keyValue = option.split("=", 2);
+                parsed.put(keyValue[0].trim(), keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        var trace = new kerneltrace(parsed);
+        trace.watchMain(instrumentation);
+        // a kernel that never gets ready is traced too, with the phases it got through
+        Runtime.getRuntime().addShutdownHook(new Thread(trace::write));
+        ipcproxykernel.daemon("kernel-trace", trace::run);
+    }
+
+    public static void agentmain(String options, Instrumentation instrumentation) {
+        premain(options, instrumentation);
+    }
+
+    kerneltrace(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Notes when the main class gets loaded, which is right before its main method runs.
+     */
+    void watchMain(Instrumentation instrumentation) {
+        String mainClass = mainClass();
+        if (mainClass == null) {
+            return;
+        }
+        String internalName = mainClass.replace('.', '/');
+        instrumentation.addTransformer(new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+                if (internalName.equals(className) && mainLoaded < 0) {
+                    mainLoaded = System.currentTimeMillis();
+                    instrumentation.removeTransformer(this);
+                }
+                return null;
+            }
+        });
+    }
+
+    static String mainClass() {
+        String command = System.getProperty("sun.java.command", "").trim();
+        if (command.isEmpty()) {
+            return null;
+        }
+        String first = command.split(" ")[0];
+        if (!first.endsWith(".jar")) {
+            return first;
+        }
+        try (var jar = new JarFile(first)) {
+            return jar.getManifest() == null ? null : jar.getManifest().getMainAttributes().getValue("Main-Class");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void run() throws IOException {
+        String connectionFile = options.get("connection");
+        while (connectionFile == null || connectionFile.contains("{connection_file}")) {
+            connectionFile = System.getProperty("jupyter.connection_file");
+            if (connectionFile != null) {
+                handedOff = System.currentTimeMillis();
+                break;
+            }
+            ipcproxykernel.sleep(20);
+        }
+        Map<String, Object> connection = ipcproxykernel.Json.object(Files.readString(Path.of(connectionFile)));
+
+        String session = UUID.randomUUID().toString();
+        try (var shell = kernelwarmup.connect(connection, "shell", "DEALER", "Identity", session.getBytes(StandardCharsets.US_ASCII))) {
+            bound = System.currentTimeMillis();
+            shell.write(kernelwarmup.message(connection, session, "kernel_info_request", "{}"));
+            shell.read();
+            ready = System.currentTimeMillis();
+        }
+        write();
+    }
+
+    synchronized void write() {
+        if (!written.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Path file = Path.of(options.getOrDefault("file", "startup.jsonl"));
+            if (Files.exists(file) && Files.size(file) > MAX_BYTES) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            // one write per line, so kernels starting at the same time do not interleave their records
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap((record() + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write startup trace: " + e.getMessage());
+        }
+    }
+
+    String record() {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        boolean pooled = handedOff >= 0;
+        long launcherStart = pooled ? -1 : launcherStart(jvmStart);
+        long start = pooled ? handedOff : launcherStart;
+
+        int entries = 0;
+        long bytes = 0;
+        int fetched = 0;
+        for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            entries++;
+            var file = Path.of(entry).toFile();
+            bytes += file.isFile() ? file.length() : 0;
+            if (file.lastModified() >= launcherStart && launcherStart > 0) {
+                fetched++;
+            }
+        }
+        boolean jdkFetched = launcherStart > 0 && Path.of(System.getProperty("java.home")).toFile().lastModified() >= launcherStart;
+
+        return String.format(Locale.ROOT, "{\"timestamp\": \"%s\", \"pid\": %d, \"pooled\": %b, "
+                        + "\"launcher_start\": %d, \"jvm_start\": %d, \"agent\": %d, \"main\": %d, \"bound\": %d, \"ready\": %d, "
+                        + "\"launcher_ms\": %d, \"boot_ms\": %d, \"init_ms\": %d, \"ready_ms\": %d, \"total_ms\": %d, "
+                        + "\"java_home\": %s, \"java_version\": %s, \"cds\": %b, "
+                        + "\"classpath_entries\": %d, \"classpath_bytes\": %d, \"fetched_jars\": %d, \"cached_jars\": %d, \"jdk_fetched\": %b}",
+                Instant.now(), ProcessHandle.current().pid(), pooled,
+                launcherStart, jvmStart, agentStart, mainLoaded, bound, ready,
+                pooled ? -1 : jvmStart - launcherStart,
+                between(pooled ? -1 : jvmStart, mainLoaded),
+                between(pooled ? handedOff : mainLoaded, bound),
+                between(bound, ready),
+                between(start, ready),
+                ipcproxykernel.Json.quote(System.getProperty("java.home")),
+                ipcproxykernel.Json.quote(System.getProperty("java.version")),
+                System.getProperty("java.vm.info", "").contains("sharing"),
+                entries, bytes, fetched, entries - fetched, jdkFetched);
+    }
+
+    static long between(long from, long to) {
+        return from < 0 || to < 0 ? -1 : to - from;
+    }
+
+    /**
+     * When this process started, or its parent if that is jbang starting java as a child, i.e. on Windows.
+     */
+    static long launcherStart(long jvmStart) {
+        var self = ProcessHandle.current();
+        long start = startOf(self, jvmStart);
+        var parent = self.parent().orElse(null);
+        if (parent != null && parent.info().commandLine().orElse(parent.info().command().orElse("")).contains("jbang")) {
+            start = startOf(parent, start);
+        }
+        return Math.min(start, jvmStart);
+    }
+
+    /**
+     * The start of a process. On Linux it is computed from its age since boot in <code>/proc</code>, as
+     * {@link ProcessHandle.Info#startInstant()} adds it to a boot time that is only precise to the second.
+     */
+    static long startOf(ProcessHandle process, long fallback) {
+        try {
+            String stat = Files.readString(Path.of("/proc", String.valueOf(process.pid()), "stat"));
+            // the command in parentheses may contain spaces, the start time is the 20th field after it
+            long startTicks = Long.parseLong(stat.substring(stat.lastIndexOf(')') + 2).split(" ")[19]);
+            double uptime = Double.parseDouble(Files.readString(Path.of("/proc/uptime")).split(" ")[0]);
+            return System.currentTimeMillis() - (long) (uptime * 1000) + startTicks * 1000 / CLOCK_TICKS;
+        } catch (IOException | RuntimeException e) {
+            return process.info().startInstant().map(Instant::toEpochMilli).orElse(fallback);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17+
+//JAVAAGENT
+//SOURCES ipcproxykernel.java
+
+import static java.lang.System.err;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A java agent that warms up a kernel in the background: as soon as the kernel answers its first heartbeat,
+ * it sends each cell as a silent execute_request on the shell channel, like a frontend would. javac, JShell
+ * (or the kernel's own compiler) and the JIT are then warm before the user's first cell. Silent requests
+ * are not broadcast and do not count in the execution history.
+ *
+ * The shell channel runs one request at a time, so the user's first cell waits for the cells sent before it.
+ * The init script has to run first anyway, the warm-up cells only help while the user has not run anything:
+ * they are skipped once the kernel started on an execute_request of another session. A user's cell that
+ * arrives while a warm-up cell runs still waits for it.
+ *
+ * Options, comma separated: <code>connection=</code> the connection file, <code>init=</code> and <code>cells=</code>
+ * files separated by <code>|</code> each sent as one cell, skipped if missing, the init cells always and first.
+ *
+ * Usage: -javaagent:kernelwarmup.jar=connection={connection_file},init=init.jsh,cells=warmup.jsh
+ */
+class kernelwarmup {
+
+    public static void premain(String options) {
+        String connection = null;
+        List<Path> init = new ArrayList<>();
+        List<Path> cells = new ArrayList<>();
+        if (options != null) {
+            for (String option : options.split(",")) {
+                if (option.startsWith("connection=")) {
+                    connection = option.substring("connection=".length());
+                } else if (option.startsWith("init=")) {
+                    for (String cell : option.substring("init=".length()).split("\\|")) {
+                        init.add(Path.of(cell));
+                    }
+                } else if (option.startsWith("cells=")) {
+                    for (String cell : option.substring("cells=".length()).split("\\|")) {
+                        cells.add(Path.of(cell));
+                    }
+                }
+            }
+        }
+        String connectionFile = connection;
+        ipcproxykernel.daemon("kernel-warmup", () -> warmup(connectionFile, init, cells));
+    }
+
+    public static void agentmain(String options) {
+        premain(options);
+    }
+
+    static void warmup(String connectionFile, List<Path> init, List<Path> cells) throws IOException {
+        while (connectionFile == null || connectionFile.contains("{connection_file}")) {
+            // pooled kernels are handed their connection file long after the jvm started
+            connectionFile = System.getProperty("jupyter.connection_file");
+            ipcproxykernel.sleep(50);
+        }
+        Map<String, Object> connection = ipcproxykernel.Json.object(Files.readString(Path.of(connectionFile)));
+
+        try (var hb = connect(connection, "hb", "REQ")) {
+            hb.write(List.of(ByteBuffer.allocate(0), ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII))));
+            hb.read();
+        }
+
+        String session = UUID.randomUUID().toString();
+        var userCell = new AtomicBoolean();
+        try (var iopub = connect(connection, "iopub", "SUB");
+                var shell = connect(connection, "shell", "DEALER", "Identity", session.getBytes(StandardCharsets.US_ASCII))) {
+            iopub.write(List.of(ByteBuffer.wrap(new byte[] {1})));
+            ipcproxykernel.daemon("kernel-warmup-iopub", () -> watch(iopub, session, userCell));
+            for (Path cell : init) {
+                execute(connection, session, shell, cell);
+            }
+            for (Path cell : cells) {
+                if (userCell.get()) {
+                    if (Boolean.getBoolean("kernelwarmup.verbose")) {
+                        err.println("Skipped warming up with " + cell.getFileName() + ", the user's first cell ran");
+                    }
+                    break;
+                }
+                execute(connection, session, shell, cell);
+            }
+        }
+    }
+
+    static void execute(Map<String, Object> connection, String session, ipcproxykernel.Zmtp shell, Path cell) throws IOException {
+        if (!Files.exists(cell)) {
+            return;
+        }
+        long start = System.nanoTime();
+        String content = "{\"code\": " + ipcproxykernel.Json.quote(Files.readString(cell))
+                + ", \"silent\": true, \"store_history\": false, \"user_expressions\": {}, \"allow_stdin\": false, \"stop_on_error\": false}";
+        shell.write(message(connection, session, "execute_request", content));
+        // the kernel answers on shell with nothing but the execute_reply
+        shell.read();
+        if (Boolean.getBoolean("kernelwarmup.verbose")) {
+            err.println(String.format("Warmed up with %s in %d ms, %d ms after jvm start", cell.getFileName(), (System.nanoTime() - start) / 1_000_000,
+                    ManagementFactory.getRuntimeMXBean().getUptime()));
+        }
+    }
+
+    /**
+     * Sets <code>userCell</code> once the kernel publishes on behalf of an execute_request of another session than ours.
+     * Runs until the warm-up closes <code>iopub</code>.
+     */
+    static void watch(ipcproxykernel.Zmtp iopub, String session, AtomicBoolean userCell) throws IOException {
+        ByteBuffer delimiter = ByteBuffer.wrap("<IDS|MSG>".getBytes(StandardCharsets.US_ASCII));
+        while (!userCell.get()) {
+            List<ByteBuffer> frames = iopub.read();
+            int index = frames.indexOf(delimiter);
+            if (index < 0 || frames.size() < index + 4) {
+                continue;
+            }
+            try {
+                // delimiter, signature, header, parent header
+                Map<String, Object> parent = ipcproxykernel.Json.object(StandardCharsets.UTF_8.decode(frames.get(index + 3)).toString());
+                if ("execute_request".equals(parent.get("msg_type")) && !session.equals(parent.get("session"))) {
+                    userCell.set(true);
+                }
+            } catch (RuntimeException e) {
+                // not json, not the frontend's
+            }
+        }
+    }
+
+    static ipcproxykernel.Zmtp connect(Map<String, Object> connection, String channel, String socketType, Object... properties) throws IOException {
+        String ip = String.valueOf(connection.get("ip"));
+        int port = ((Number) connection.get(channel + "_port")).intValue();
+        SocketAddress address = "ipc".equals(connection.get("transport"))
+                ? UnixDomainSocketAddress.of(ip + "-" + port)
+                : new InetSocketAddress(ip.equals("0.0.0.0") || ip.equals("*") ? "127.0.0.1" : ip, port);
+        while (true) {
+            try {
+                var zmtp = new ipcproxykernel.Zmtp(SocketChannel.open(address));
+                zmtp.handshake(socketType, false, properties);
+                return zmtp;
+            } catch (IOException e) {
+                ipcproxykernel.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * A signed Jupyter message, with the empty signature the protocol prescribes when the connection has no key.
+     */
+    static List<ByteBuffer> message(Map<String, Object> connection, String session, String msgType, String content) throws IOException {
+        String header = "{\"msg_id\": \"" + UUID.randomUUID() + "\", \"session\": \"" + session + "\", \"username\": \"warmup\", \"msg_type\": \""
+                + msgType + "\", \"version\": \"5.3\", \"date\": \"" + Instant.now() + "\"}";
+        byte[][] parts = {header.getBytes(StandardCharsets.UTF_8), "{}".getBytes(StandardCharsets.UTF_8),
+                "{}".getBytes(StandardCharsets.UTF_8), content.getBytes(StandardCharsets.UTF_8)};
+        String key = String.valueOf(connection.getOrDefault("key", ""));
+        StringBuilder signature = new StringBuilder();
+        if (!key.isEmpty()) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                for (byte[] part : parts) {
+                    mac.update(part);
+                }
+                for (byte b : mac.doFinal()) {
+                    signature.append(String.format("%02x", b));
+                }
+            } catch (java.security.GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+        List<ByteBuffer> frames = new ArrayList<>();
+        frames.add(ByteBuffer.wrap("<IDS|MSG>".getBytes(StandardCharsets.US_ASCII)));
+        frames.add(ByteBuffer.wrap(signature.toString().getBytes(StandardCharsets.US_ASCII)));
+        for (byte[] part : parts) {
+            frames.add(ByteBuffer.wrap(part));
+        }
+        return frames;
+    }
+}